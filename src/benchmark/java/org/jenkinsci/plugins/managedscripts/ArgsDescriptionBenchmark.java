@@ -0,0 +1,36 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The argument description shown below the script selection of the build step.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ArgsDescriptionBenchmark {
+
+    @Param({ "0", "3", "20" })
+    public int args;
+
+    private ScriptConfig config;
+
+    @Setup
+    public void setUp() {
+        config = BenchmarkConfigs.newConfig(1, args, 0);
+    }
+
+    @Benchmark
+    public String argsDescription() {
+        return ScriptBuildStep.DescriptorImpl.getArgsDescription(config);
+    }
+}
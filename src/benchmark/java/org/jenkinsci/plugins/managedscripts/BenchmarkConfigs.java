@@ -0,0 +1,40 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jenkinsci.lib.configprovider.model.Config;
+import org.jenkinsci.plugins.managedscripts.ScriptConfig.Arg;
+
+/**
+ * Generates the configs the benchmarks work on.
+ */
+final class BenchmarkConfigs {
+
+    private BenchmarkConfigs() {
+    }
+
+    /**
+     * Creates a config with the given number of arguments and a content of roughly the given size. Names are neither unique nor in id order, like in real
+     * catalogs.
+     */
+    static ScriptConfig newConfig(int i, int argCount, int contentSize) {
+        final List<Arg> args = new ArrayList<Arg>(argCount);
+        for (int a = 0; a < argCount; a++) {
+            args.add(new Arg("ARG_" + a));
+        }
+        final StringBuilder content = new StringBuilder("#!/bin/bash -e\n");
+        while (content.length() < contentSize) {
+            content.append("echo \"line ").append(content.length()).append(" of script ").append(i).append("\"\n");
+        }
+        return new ScriptConfig("ScriptConfigProvider." + i, "script " + ((i * 7919) % 100000), "comment of script " + i, content.toString(), args);
+    }
+
+    static List<Config> newConfigs(int count, int argCount, int contentSize) {
+        final List<Config> configs = new ArrayList<Config>(count);
+        for (int i = 0; i < count; i++) {
+            configs.add(newConfig(i, argCount, contentSize));
+        }
+        return configs;
+    }
+}
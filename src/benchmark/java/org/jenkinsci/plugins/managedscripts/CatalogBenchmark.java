@@ -0,0 +1,51 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jenkinsci.lib.configprovider.model.Config;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The list of available scripts as shown in the build step (<code>getAvailableBuildTemplates</code>): building the sorted {@link ConfigCatalog} on save
+ * and reading it on each page view.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CatalogBenchmark {
+
+    @Param({ "100", "1000", "10000", "50000" })
+    public int configs;
+
+    private List<Config> all;
+    private ConfigCatalog catalog;
+
+    @Setup
+    public void setUp() {
+        all = BenchmarkConfigs.newConfigs(configs, 2, 256);
+        catalog = ConfigCatalog.of(all);
+    }
+
+    @Benchmark
+    public ConfigCatalog buildCatalog() {
+        return ConfigCatalog.of(all);
+    }
+
+    @Benchmark
+    public List<Config> availableBuildTemplates() {
+        return catalog.getConfigsSortedByName();
+    }
+
+    @Benchmark
+    public Object search() {
+        return catalog.search("script 12", 0, 20);
+    }
+}
@@ -0,0 +1,43 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Hash-bang parsing and the construction of the command line in {@link ScriptExecution}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class InterpreterBenchmark {
+
+    @Param({ "#!/bin/bash -ex\necho hello\n", "#!/usr/bin/env python\r\nprint('hello')\r\n", "#!/usr/bin/python -u\nprint('hello')\n",
+            "echo no interpreter\n" })
+    public String script;
+
+    private ExecutionPlan plan;
+
+    @Setup
+    public void setUp() {
+        plan = ExecutionPlan.compile(new ScriptConfig("ScriptConfigProvider.0", "script", "", script, null));
+    }
+
+    @Benchmark
+    public List<String> parseInterpreterLine() {
+        return ExecutionPlan.parseInterpreterLine(script);
+    }
+
+    @Benchmark
+    public List<String> commandLine() {
+        return ScriptExecution.commandLine(plan, "/bin/sh", "/var/lib/jenkins/managed-scripts-cache/0123456789abcdef.sh").toList();
+    }
+}
@@ -0,0 +1,17 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import org.jvnet.hudson.test.HudsonTestCase;
+
+/**
+ * A Jenkins instance for the benchmarks which need one, started once per trial.
+ */
+public class JenkinsFixture extends HudsonTestCase {
+
+    public void start() throws Exception {
+        setUp();
+    }
+
+    public void stop() throws Exception {
+        tearDown();
+    }
+}
@@ -0,0 +1,88 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import jenkins.model.Jenkins;
+
+import org.jenkinsci.lib.configprovider.ConfigProvider;
+import org.jenkinsci.lib.configprovider.model.Config;
+import org.jenkinsci.plugins.managedscripts.ScriptConfig.ScriptConfigProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * XStream load and save of the configs through the real provider. The setup writes a single <code>buildstep-config-files.xml</code>, which gets migrated
+ * to one file per config by the first load (unless {@link AbstractScriptConfigProvider#SINGLE_FILE} is set).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PersistenceBenchmark {
+
+    @Param({ "100", "1000", "5000" })
+    public int configs;
+
+    @Param({ "2048" })
+    public int contentSize;
+
+    private JenkinsFixture jenkins;
+    private ScriptConfigProvider provider;
+    private ScriptConfig changed;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        jenkins = new JenkinsFixture();
+        jenkins.start();
+        provider = ConfigProvider.all().get(ScriptConfigProvider.class);
+
+        // write the file in one go, saving config by config would take quadratic time
+        final List<Config> all = BenchmarkConfigs.newConfigs(configs, 2, contentSize);
+        final Writer w = new OutputStreamWriter(new FileOutputStream(new File(Jenkins.getInstance().getRootDir(), "buildstep-config-files.xml")), "UTF-8");
+        try {
+            w.write("<?xml version='1.0' encoding='UTF-8'?>\n<org.jenkinsci.plugins.managedscripts.ScriptConfig_-ScriptConfigProvider>\n<configs>\n");
+            for (Config config : all) {
+                w.write("<entry><string>" + config.id + "</string>");
+                w.write(Jenkins.XSTREAM.toXML(config));
+                w.write("</entry>\n");
+            }
+            w.write("</configs>\n</org.jenkinsci.plugins.managedscripts.ScriptConfig_-ScriptConfigProvider>\n");
+        } finally {
+            w.close();
+        }
+        provider.load();
+        if (provider.getCatalog().size() != configs) {
+            throw new IllegalStateException("expected " + configs + " configs, got " + provider.getCatalog().size());
+        }
+        changed = (ScriptConfig) all.get(configs / 2);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        jenkins.stop();
+    }
+
+    @Benchmark
+    public ConfigCatalog load() {
+        provider.load();
+        return provider.getCatalog();
+    }
+
+    @Benchmark
+    public ConfigCatalog save() {
+        provider.save(changed);
+        return provider.getCatalog();
+    }
+}
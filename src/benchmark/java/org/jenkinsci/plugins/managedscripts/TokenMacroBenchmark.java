@@ -0,0 +1,72 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.TaskListener;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jenkinsci.plugins.tokenmacro.TokenMacro;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Expansion of the arguments of a build step (<code>buildStepArgs</code>): one {@link TokenMacro} call per argument as done before {@link MacroArgs}, and
+ * {@link MacroArgs} evaluating each distinct token once per step (nothing is remembered between steps or builds).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TokenMacroBenchmark {
+
+    @Param({ "plain-literal", "${BUILD_NUMBER}", "--job=${JOB_NAME} --build=${BUILD_NUMBER}", "${ENV,var=\"JOB_NAME\"}" })
+    public String arg;
+
+    @Param({ "1", "10" })
+    public int args;
+
+    private JenkinsFixture jenkins;
+    private FreeStyleBuild build;
+    private String[] buildStepArgs;
+    private MacroArgs macroArgs;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        jenkins = new JenkinsFixture();
+        jenkins.start();
+        final FreeStyleProject project = jenkins.createFreeStyleProject("token-macro");
+        build = project.scheduleBuild2(0).get();
+        buildStepArgs = new String[args];
+        for (int i = 0; i < args; i++) {
+            buildStepArgs[i] = arg;
+        }
+        macroArgs = MacroArgs.of(buildStepArgs);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        jenkins.stop();
+    }
+
+    @Benchmark
+    public String[] expandAll() throws Exception {
+        final String[] expanded = new String[buildStepArgs.length];
+        for (int i = 0; i < buildStepArgs.length; i++) {
+            expanded[i] = TokenMacro.expandAll(build, TaskListener.NULL, buildStepArgs[i], false, null);
+        }
+        return expanded;
+    }
+
+    @Benchmark
+    public String[] macroArgs() throws Exception {
+        return macroArgs.expand(build, TaskListener.NULL);
+    }
+}
@@ -0,0 +1,409 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.Util;
+import hudson.XmlFile;
+import hudson.model.Failure;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import org.jenkinsci.lib.configprovider.AbstractConfigProviderImpl;
+import org.jenkinsci.lib.configprovider.model.Config;
+
+/**
+ * Common base of the providers for managed scripts.
+ * <p>
+ * All reads are served from an immutable {@link ConfigCatalog}, which is replaced whenever a config is loaded, saved or removed.
+ * <p>
+ * Each config is stored in a file of its own in a directory named after {@link #getXmlFileName()} (e.g. <code>buildstep-config-files/</code>), saving a
+ * config only (atomically) rewrites its file. Configs stored in the single file of older versions are migrated on the first load, the single file is kept
+ * as <code>*.xml.migrated</code>. If a file cannot be written, the single file is kept and used until the next start, which migrates again. Setting the system property <code>org.jenkinsci.plugins.managedscripts.AbstractScriptConfigProvider.singleFile</code>
+ * to <code>true</code> keeps all configs in the single file.
+ * <p>
+ * Older versions only read the single file, so before downgrading the plugin Jenkins has to be started once with <code>singleFile=true</code>: this moves
+ * the configs back to the single file (the directory is kept as <code>*.migrated</code>).
+ * <p>
+ * With one file per config only the metadata of the configs (everything but the content) is kept on the heap, the catalog and the config lists never
+ * need the content. {@link #getConfigById(String)} loads the content on demand through a bounded {@link ContentCache}.
+ */
+public abstract class AbstractScriptConfigProvider extends AbstractConfigProviderImpl {
+
+    private static final Logger LOGGER = Logger.getLogger(AbstractScriptConfigProvider.class.getName());
+
+    /**
+     * store all configs of a provider in a single file, as done by older versions
+     */
+    public static boolean SINGLE_FILE = Boolean.getBoolean(AbstractScriptConfigProvider.class.getName() + ".singleFile");
+
+    private static final String MIGRATED_SUFFIX = ".migrated";
+
+    private transient volatile ConfigCatalog catalog = ConfigCatalog.EMPTY;
+
+    // the migration to one file per config failed, the single file is used until the next start
+    private transient volatile boolean migrationFailed;
+
+    private transient final ContentCache contents = new ContentCache();
+
+    /**
+     * @return the current snapshot of all configs of this provider, the configs in the snapshot might not contain the content (see
+     *         {@link #getConfigById(String)})
+     */
+    public ConfigCatalog getCatalog() {
+        return catalog;
+    }
+
+    @Override
+    public Collection<Config> getAllConfigs() {
+        return catalog.getConfigsSortedByName();
+    }
+
+    /**
+     * Returns the config with the given id, including its content.
+     */
+    @Override
+    public Config getConfigById(String configId) {
+        final Config metadata = catalog.get(configId);
+        if (metadata == null || isSingleFile()) {
+            return metadata;
+        }
+        final String content = contents.get(configId);
+        return content != null ? withContent(metadata, content) : loadConfig(configId);
+    }
+
+    // synchronized with save/remove, so an old version read from the file never ends up in the cache
+    private synchronized Config loadConfig(String configId) {
+        final Config metadata = catalog.get(configId);
+        if (metadata == null) {
+            return null;
+        }
+        String content = contents.get(configId);
+        if (content == null) {
+            final Config config = readConfigFile(getConfigFile(configId));
+            if (config == null || !configId.equals(config.id)) {
+                return null;
+            }
+            content = config.content;
+            contents.put(configId, content);
+        }
+        return withContent(metadata, content);
+    }
+
+    /**
+     * Creates a copy of the given config with another content.
+     *
+     * @param config
+     *            the config to copy
+     * @param content
+     *            the content of the copy, <code>null</code> for a copy containing the metadata only
+     */
+    protected abstract Config withContent(Config config, String content);
+
+    @Override
+    public synchronized void load() {
+        if (SINGLE_FILE) {
+            unmigrate();
+            super.load();
+        } else {
+            // a failed migration leaves the configs of the single file loaded
+            migrationFailed = !migrate();
+            if (!migrationFailed) {
+                loadConfigFiles();
+            }
+        }
+        updateCatalog();
+        ScriptSearchIndex.invalidate(this);
+    }
+
+    /**
+     * @throws Failure
+     *             if the file of the config cannot be written, the previous version stays in place
+     */
+    @Override
+    public synchronized void save(Config config) {
+        validate(Collections.singleton(config), Collections.<String> emptySet());
+        if (isSingleFile()) {
+            super.save(config);
+        } else {
+            try {
+                writeConfigFile(config);
+            } catch (IOException e) {
+                throw failedToSave(config, e);
+            }
+            configs.put(config.id, withContent(config, null));
+            contents.put(config.id, config.content);
+        }
+        updateCatalog();
+        ScriptSearchIndex.changed(this, config.id, config);
+        onChange(config.id);
+    }
+
+    @Override
+    public synchronized void remove(String configId) {
+        if (isSingleFile()) {
+            super.remove(configId);
+        } else {
+            configs.remove(configId);
+            contents.remove(configId);
+            final File file = getConfigFile(configId);
+            if (file.exists() && !file.delete()) {
+                LOGGER.log(Level.WARNING, "Failed to delete " + file);
+            }
+        }
+        updateCatalog();
+        ScriptSearchIndex.changed(this, configId, null);
+        ScriptMetrics.remove(configId);
+        onChange(configId);
+    }
+
+    /**
+     * Saves and removes several configs at once, the catalog is only rebuilt once. In single file mode the file is written once, otherwise only the files
+     * of the given configs are written or deleted.
+     *
+     * @param saved
+     *            the configs to add or replace
+     * @param removed
+     *            the ids of the configs to remove
+     * @throws Failure
+     *             if the change is invalid (see {@link #validate(Collection, Collection)}, nothing is changed), or if the file of a config cannot be
+     *             written: the configs written before stay saved, the others and the removals are not applied
+     */
+    public synchronized void saveAll(Collection<? extends Config> saved, Collection<String> removed) {
+        validate(saved, removed);
+        final List<Config> written = new ArrayList<Config>(saved.size());
+        Failure failure = null;
+        for (Config config : saved) {
+            if (isSingleFile()) {
+                configs.put(config.id, config);
+            } else {
+                try {
+                    writeConfigFile(config);
+                } catch (IOException e) {
+                    failure = failedToSave(config, e);
+                    break;
+                }
+                configs.put(config.id, withContent(config, null));
+                contents.put(config.id, config.content);
+            }
+            written.add(config);
+        }
+        final List<String> deleted = failure == null ? new ArrayList<String>(removed) : Collections.<String> emptyList();
+        for (String configId : deleted) {
+            configs.remove(configId);
+            if (!isSingleFile()) {
+                contents.remove(configId);
+                final File file = getConfigFile(configId);
+                if (file.exists() && !file.delete()) {
+                    LOGGER.log(Level.WARNING, "Failed to delete " + file);
+                }
+            }
+        }
+        if (isSingleFile()) {
+            super.save();
+        }
+        updateCatalog();
+        for (Config config : written) {
+            ScriptSearchIndex.changed(this, config.id, config);
+            onChange(config.id);
+        }
+        for (String configId : deleted) {
+            ScriptSearchIndex.changed(this, configId, null);
+            ScriptMetrics.remove(configId);
+            onChange(configId);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Checks a change before anything is written, so {@link BulkTransfer} can check all kinds of configs before the first one is saved.
+     *
+     * @param saved
+     *            the configs to add or replace
+     * @param removed
+     *            the ids of the configs to remove
+     * @throws Failure
+     *             if the change is not allowed
+     */
+    protected void validate(Collection<? extends Config> saved, Collection<String> removed) {
+    }
+
+    private Failure failedToSave(Config config, IOException e) {
+        final File file = getConfigFile(config.id);
+        LOGGER.log(Level.SEVERE, "Failed to save " + file, e);
+        return new Failure("Failed to save '" + config.name + "' to " + file + ": " + e.getMessage());
+    }
+
+    /**
+     * Writes all configs, e.g. at the end of a bulk change. Nothing to do with one file per config, each change is written immediately.
+     */
+    @Override
+    public synchronized void save() {
+        if (isSingleFile()) {
+            super.save();
+        }
+    }
+
+    /**
+     * Called after a config has been saved or removed, the new version is already visible in the catalog.
+     *
+     * @param configId
+     *            the id of the changed config
+     */
+    protected void onChange(String configId) {
+    }
+
+    private boolean isSingleFile() {
+        return SINGLE_FILE || migrationFailed;
+    }
+
+    /**
+     * @return the directory holding one file per config
+     */
+    protected File getStorageDir() {
+        String name = getXmlFileName();
+        if (name.endsWith(".xml")) {
+            name = name.substring(0, name.length() - 4);
+        }
+        return new File(Jenkins.getInstance().getRootDir(), name);
+    }
+
+    /**
+     * @return the file the given config is stored in
+     */
+    protected File getConfigFile(String configId) {
+        return new File(getStorageDir(), Util.rawEncode(configId) + ".xml");
+    }
+
+    /**
+     * Moves the configs from the single file of older versions to one file per config. As long as the single file exists nothing else writes the files
+     * of the configs, so all of them are (re)written and an interrupted or failed migration is simply repeated. The single file is only renamed once
+     * every config has been written.
+     *
+     * @return <code>false</code> if a file could not be written, the configs of the single file are loaded then
+     */
+    private boolean migrate() {
+        final XmlFile legacy = getConfigXml();
+        if (!legacy.exists()) {
+            return true;
+        }
+        super.load(); // the backward compatibility aliases of the subclasses apply here
+        int migrated = 0;
+        for (Config config : configs.values()) {
+            try {
+                writeConfigFile(config);
+                migrated++;
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Failed to migrate " + config.id + " to " + getConfigFile(config.id) + ", keeping all configs in "
+                        + legacy.getFile() + " until the next start", e);
+                return false;
+            }
+        }
+        final File file = legacy.getFile();
+        final File backup = new File(file.getPath() + MIGRATED_SUFFIX);
+        if (backup.exists()) {
+            backup.delete();
+        }
+        if (!file.renameTo(backup)) {
+            LOGGER.log(Level.WARNING, "Failed to rename " + file + " to " + backup + ", the configs will be migrated again on the next start");
+        }
+        LOGGER.log(Level.WARNING, "Migrated " + migrated + " configs from " + file + " to " + getStorageDir()
+                + ". Older versions of the plugin only read " + file.getName() + ", before a downgrade start Jenkins once with -D"
+                + AbstractScriptConfigProvider.class.getName() + ".singleFile=true to move the configs back.");
+        return true;
+    }
+
+    /**
+     * Moves the configs from one file per config back to the single file, e.g. before a downgrade. The directory is renamed, so a later
+     * {@link #migrate()} does not prefer its outdated files.
+     */
+    private void unmigrate() {
+        final File dir = getStorageDir();
+        final XmlFile legacy = getConfigXml();
+        if (legacy.exists() || !dir.isDirectory()) {
+            return;
+        }
+        configs.clear();
+        for (File f : listConfigFiles()) {
+            final Config config = readConfigFile(f);
+            if (config != null) {
+                configs.put(config.id, config);
+            }
+        }
+        super.save();
+        if (!legacy.exists()) {
+            LOGGER.log(Level.SEVERE, "Failed to move the configs from " + dir + " to " + legacy.getFile());
+            return;
+        }
+        final File backup = new File(dir.getPath() + MIGRATED_SUFFIX);
+        try {
+            if (backup.exists()) {
+                Util.deleteRecursive(backup);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to delete " + backup, e);
+        }
+        if (!dir.renameTo(backup)) {
+            LOGGER.log(Level.WARNING, "Failed to rename " + dir + " to " + backup + ", its files take precedence if the configs are migrated again");
+        }
+        LOGGER.log(Level.INFO, "Moved " + configs.size() + " configs from " + dir + " back to " + legacy.getFile());
+    }
+
+    private File[] listConfigFiles() {
+        final File[] files = getStorageDir().listFiles(new FileFilter() {
+            public boolean accept(File f) {
+                return f.isFile() && f.getName().endsWith(".xml");
+            }
+        });
+        return files == null ? new File[0] : files;
+    }
+
+    private void loadConfigFiles() {
+        configs.clear();
+        contents.clear();
+        for (File f : listConfigFiles()) {
+            final Config config = readConfigFile(f);
+            if (config != null) {
+                configs.put(config.id, withContent(config, null));
+            }
+        }
+    }
+
+    private Config readConfigFile(File f) {
+        try {
+            final Object o = new XmlFile(Jenkins.XSTREAM, f).read();
+            if (o instanceof Config) {
+                return (Config) o;
+            }
+            LOGGER.log(Level.WARNING, "Ignoring " + f + ", it does not contain a config");
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to load " + f, e);
+        }
+        return null;
+    }
+
+    /**
+     * Writes the file of the given config, the file is replaced atomically.
+     */
+    private void writeConfigFile(Config config) throws IOException {
+        final File file = getConfigFile(config.id);
+        final File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        new XmlFile(Jenkins.XSTREAM, file).write(config);
+    }
+
+    private void updateCatalog() {
+        catalog = ConfigCatalog.of(configs.values());
+    }
+}
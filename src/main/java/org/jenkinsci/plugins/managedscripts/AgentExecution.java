@@ -0,0 +1,170 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.EnvVars;
+import hudson.FilePath.FileCallable;
+import hudson.Functions;
+import hudson.Launcher;
+import hudson.Launcher.ProcStarter;
+import hudson.Proc;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Executed on the execution host: stages the script, resolves the interpreter, executes the script and cleans up, all in a single remote call.
+ * <p>
+ * The process is launched with a local launcher on the execution host, so this is only used if the launcher of the build is not decorated (or if the output
+ * is captured). If the build is aborted, the remote call is cancelled and the interrupted join kills the process tree. Scripts opting in to worker mode
+ * are executed by a warm interpreter of the {@link WorkerPool} instead.
+ */
+final class AgentExecution implements FileCallable<AgentExecution.Result> {
+    private static final long serialVersionUID = 1L;
+
+    private final String cacheDir;
+    private final ScriptCache.Staging staging;
+    private final byte[] stdin;
+    private final List<String> interpreter;
+    private final String shell;
+    private final WorkerPool.Spec worker;
+    private final String scriptArgument;
+    private final String[] args;
+    private final EnvVars env;
+    private final int timeoutSeconds;
+    private final OutputCapture capture;
+    private final String outputFile;
+    private final TaskListener listener;
+
+    /**
+     * @param cacheDir
+     *            the script cache directory on the execution host
+     * @param staging
+     *            the script to stage, <code>null</code> if the script is passed on stdin
+     * @param stdin
+     *            the script to pass on stdin, <code>null</code> if the script is staged
+     * @param interpreter
+     *            the interpreter line, <code>null</code> for the default shell
+     * @param shell
+     *            the shell configured for the shell build step, <code>null</code> for the default of the execution host
+     * @param worker
+     *            the worker to execute the (staged) script with, <code>null</code> to launch the interpreter
+     * @param stdinArgument
+     *            the argument making the interpreter read the script from stdin
+     * @param args
+     *            the expanded arguments of the build step
+     * @param env
+     *            the environment of the process
+     * @param timeoutSeconds
+     *            the budget of the process, <code>0</code> for none
+     * @param capture
+     *            how to capture the output, <code>null</code> to send all of it to the listener
+     * @param outputFile
+     *            the file to capture the output in, <code>null</code> if the output is not captured
+     * @param listener
+     *            gets the output of the process
+     */
+    AgentExecution(String cacheDir, ScriptCache.Staging staging, byte[] stdin, List<String> interpreter, String shell, WorkerPool.Spec worker,
+            String stdinArgument, String[] args, EnvVars env, int timeoutSeconds, OutputCapture capture, String outputFile, TaskListener listener) {
+        this.cacheDir = cacheDir;
+        this.staging = staging;
+        this.stdin = stdin;
+        this.interpreter = interpreter == null ? null : new ArrayList<String>(interpreter);
+        this.shell = shell;
+        this.worker = worker;
+        this.scriptArgument = stdinArgument;
+        this.args = args;
+        this.env = env;
+        this.timeoutSeconds = timeoutSeconds;
+        this.capture = capture;
+        this.outputFile = outputFile;
+        this.listener = listener;
+    }
+
+    /**
+     * @return the result or <code>null</code> if the script is not cached on the execution host and has to be sent again with its content
+     */
+    public Result invoke(File ws, VirtualChannel channel) throws IOException, InterruptedException {
+        final long[] millis = new long[ScriptMetrics.Phase.values().length];
+        long mark = System.currentTimeMillis();
+
+        String script = scriptArgument;
+        if (staging != null) {
+            final File file = staging.stage(new File(cacheDir));
+            if (file == null) {
+                return null;
+            }
+            script = file.getAbsolutePath();
+        }
+        mark = lap(millis, ScriptMetrics.Phase.STAGE, mark);
+
+        final List<String> cmds = new ArrayList<String>();
+        if (interpreter != null) {
+            cmds.addAll(interpreter);
+        } else {
+            // same default as Shell.DescriptorImpl#getShellOrDefault
+            cmds.add(shell != null ? shell : Functions.isWindows() ? "sh" : "/bin/sh");
+        }
+        cmds.add(script);
+        for (String arg : args) {
+            cmds.add(arg);
+        }
+        mark = lap(millis, ScriptMetrics.Phase.INTERPRETER, mark);
+
+        final OutputStream out = capture != null ? capture.open(new File(outputFile), listener.getLogger()) : listener.getLogger();
+        final int r;
+        try {
+            if (worker != null) {
+                final long[] spawn = new long[1];
+                r = WorkerPool.execute(worker, interpreter, new File(cacheDir), script, args, env, ws, out, timeoutSeconds, spawn);
+                millis[ScriptMetrics.Phase.SPAWN.ordinal()] += spawn[0];
+                final long now = System.currentTimeMillis();
+                millis[ScriptMetrics.Phase.RUN.ordinal()] += now - mark - spawn[0];
+                mark = now;
+            } else {
+                final ProcStarter starter = new Launcher.LocalLauncher(listener).launch().cmds(cmds).envs(env).stdout(out).pwd(ws);
+                if (stdin != null) {
+                    starter.stdin(new ByteArrayInputStream(stdin));
+                }
+                final Proc proc = starter.start();
+                mark = lap(millis, ScriptMetrics.Phase.SPAWN, mark);
+                r = ProcessWatchdog.join(proc, timeoutSeconds);
+                mark = lap(millis, ScriptMetrics.Phase.RUN, mark);
+            }
+        } finally {
+            if (capture != null) {
+                out.close();
+            } else {
+                out.flush();
+            }
+        }
+        lap(millis, ScriptMetrics.Phase.CLEANUP, mark);
+        return new Result(r, millis);
+    }
+
+    private static long lap(long[] millis, ScriptMetrics.Phase phase, long mark) {
+        final long now = System.currentTimeMillis();
+        millis[phase.ordinal()] += now - mark;
+        return now;
+    }
+
+    /**
+     * The exit code of the script and the durations of the phases on the execution host.
+     */
+    static final class Result implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final int exitCode;
+        final long[] phaseMillis;
+
+        Result(int exitCode, long[] phaseMillis) {
+            this.exitCode = exitCode;
+            this.phaseMillis = phaseMillis;
+        }
+    }
+}
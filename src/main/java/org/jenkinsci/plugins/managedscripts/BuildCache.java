@@ -0,0 +1,298 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.FilePath.TarCompression;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+import jenkins.model.Jenkins;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.types.FileSet;
+
+/**
+ * Build avoidance for managed scripts that are pure functions of their inputs (see {@link ScriptConfig#cacheable}).
+ * <p>
+ * The results of an execution (the output files and the exit code) are recorded on the master under a key calculated from everything the script depends
+ * on: the content of the script and its libraries, the interpreter, the arguments, the selected environment variables, the content of the input files
+ * and the globs of the output files. Executions with the same key restore the recorded results into the workspace instead of launching the script.
+ * Entries are evicted by size, least recently used first.
+ * <p>
+ * The outputs are collected from the workspace after the execution, which may contain files the job placed there beforehand. The key therefore also
+ * contains the full name of the job, so a job can only restore results it recorded itself. Only successful executions are recorded.
+ */
+final class BuildCache {
+
+    private static final Logger LOGGER = Logger.getLogger(BuildCache.class.getName());
+
+    /**
+     * directory of the cache, defaults to <code>$JENKINS_HOME/managed-scripts-build-cache</code> (can be a shared directory)
+     */
+    static String DIR = System.getProperty(BuildCache.class.getName() + ".dir");
+
+    /**
+     * upper bound for the size of the cache on disk
+     */
+    static long MAX_SIZE = Long.getLong(BuildCache.class.getName() + ".maxSize", 1024L * 1024 * 1024);
+
+    private static final String OUTPUTS = "outputs.tar.gz";
+    private static final String EXIT_CODE = "exitCode";
+
+    private final File dir;
+
+    BuildCache(File dir) {
+        this.dir = dir;
+    }
+
+    static BuildCache get() {
+        return new BuildCache(DIR != null ? new File(DIR) : new File(Jenkins.getInstance().getRootDir(), "managed-scripts-build-cache"));
+    }
+
+    /**
+     * Calculates the key of an execution.
+     *
+     * @param job
+     *            the full name of the job the execution belongs to, entries are not shared between jobs
+     * @param script
+     *            the encoded content of the script
+     * @param libraries
+     *            the libraries included by the script
+     * @param charset
+     *            the charset the libraries are written with
+     * @param interpreter
+     *            the interpreter line, <code>null</code> for the default shell
+     * @param args
+     *            the expanded arguments
+     * @param env
+     *            the environment of the build, only the variables in {@link ScriptConfig#cacheEnv} are part of the key
+     * @param workspace
+     *            the workspace containing the input files
+     */
+    static String key(String job, ScriptConfig config, ExecutionPlan.Encoded script, List<LibraryConfig> libraries, Charset charset, List<String> interpreter,
+            String[] args, EnvVars env, FilePath workspace) throws IOException, InterruptedException {
+        final MessageDigest digest = sha1();
+        update(digest, "job", job);
+        update(digest, "script", script.hash);
+        for (LibraryConfig library : libraries) {
+            update(digest, "library", library.id, ScriptCache.hash(library.content.getBytes(charset.name())));
+        }
+        if (interpreter != null) {
+            update(digest, "interpreter", interpreter.toArray(new String[interpreter.size()]));
+        }
+        update(digest, "args", args);
+        for (String name : getEnvNames(config)) {
+            update(digest, "env", name, env.get(name));
+        }
+        final String[] inputs = split(config.cacheInputs, "\\s*,\\s*");
+        if (inputs.length > 0) {
+            update(digest, "inputs", workspace.act(new HashInputs(inputs)));
+        }
+        update(digest, "outputs", Util.fixEmptyAndTrim(config.cacheOutputs));
+        return Util.toHexString(digest.digest());
+    }
+
+    /**
+     * Restores the recorded results of the given key into the workspace.
+     *
+     * @return the recorded exit code, <code>null</code> if there are no results for the key
+     */
+    Integer restore(String key, FilePath workspace) throws IOException, InterruptedException {
+        final File entry = new File(dir, key);
+        final File exitCode = new File(entry, EXIT_CODE);
+        if (!exitCode.isFile()) {
+            return null;
+        }
+        final int r;
+        try {
+            r = Integer.parseInt(FileUtils.readFileToString(exitCode).trim());
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Ignoring corrupt build cache entry " + entry, e);
+            return null;
+        }
+        final File outputs = new File(entry, OUTPUTS);
+        if (outputs.isFile()) {
+            final InputStream in = new BufferedInputStream(new FileInputStream(outputs));
+            try {
+                workspace.untarFrom(in, TarCompression.GZIP);
+            } finally {
+                in.close();
+            }
+        }
+        entry.setLastModified(System.currentTimeMillis());
+        return r;
+    }
+
+    /**
+     * Records the results of a successful execution. Concurrent executions with the same key keep the first recording.
+     *
+     * @param outputs
+     *            Ant globs (relative to the workspace, separated by comma) of the files to record, <code>null</code> to record the exit code only
+     */
+    void store(String key, FilePath workspace, String outputs, int exitCode) throws IOException, InterruptedException {
+        final File entry = new File(dir, key);
+        if (entry.exists()) {
+            return;
+        }
+        final File tmp = new File(dir, key + ".tmp" + Thread.currentThread().getId());
+        FileUtils.deleteDirectory(tmp);
+        if (!tmp.mkdirs()) {
+            throw new IOException("Failed to create " + tmp);
+        }
+        try {
+            final String glob = Util.fixEmptyAndTrim(outputs);
+            if (glob != null) {
+                final OutputStream out = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(new File(tmp, OUTPUTS))));
+                try {
+                    workspace.tar(out, glob);
+                } finally {
+                    out.close();
+                }
+            }
+            FileUtils.writeStringToFile(new File(tmp, EXIT_CODE), Integer.toString(exitCode));
+            if (!tmp.renameTo(entry)) {
+                LOGGER.log(Level.FINE, "Build cache entry " + key + " recorded concurrently");
+            }
+        } finally {
+            FileUtils.deleteDirectory(tmp);
+        }
+        evict();
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache fits into {@link #MAX_SIZE}.
+     */
+    synchronized void evict() {
+        final File[] entries = dir.listFiles();
+        if (entries == null) {
+            return;
+        }
+        final List<File> completed = new ArrayList<File>(entries.length);
+        long size = 0;
+        for (File entry : entries) {
+            if (entry.isDirectory() && new File(entry, EXIT_CODE).isFile()) {
+                completed.add(entry);
+                size += FileUtils.sizeOfDirectory(entry);
+            }
+        }
+        if (size <= MAX_SIZE) {
+            return;
+        }
+        Collections.sort(completed, new Comparator<File>() {
+            public int compare(File a, File b) {
+                final long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+            }
+        });
+        for (File entry : completed) {
+            if (size <= MAX_SIZE) {
+                break;
+            }
+            final long entrySize = FileUtils.sizeOfDirectory(entry);
+            try {
+                FileUtils.deleteDirectory(entry);
+                size -= entrySize;
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to evict build cache entry " + entry, e);
+            }
+        }
+    }
+
+    /**
+     * @return the names of the environment variables the results of the given config depend on, sorted
+     */
+    static List<String> getEnvNames(ScriptConfig config) {
+        final List<String> names = new ArrayList<String>(Arrays.asList(split(config.cacheEnv, "[\\s,]+")));
+        Collections.sort(names);
+        return names;
+    }
+
+    private static String[] split(String list, String separator) {
+        final String l = Util.fixEmptyAndTrim(list);
+        return l == null ? new String[0] : l.split(separator);
+    }
+
+    private static void update(MessageDigest digest, String kind, String... values) {
+        try {
+            digest.update(kind.getBytes("UTF-8"));
+            for (String value : values) {
+                digest.update((byte) 0);
+                if (value != null) {
+                    digest.update(value.getBytes("UTF-8"));
+                }
+            }
+            digest.update((byte) '\n');
+        } catch (IOException e) {
+            throw new Error(e); // UTF-8 is guaranteed to be present
+        }
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error(e); // SHA-1 is guaranteed to be present
+        }
+    }
+
+    /**
+     * Hashes the paths and contents of the input files on the execution host, so only the hash travels to the master.
+     */
+    private static final class HashInputs implements FileCallable<String> {
+        private static final long serialVersionUID = 1L;
+
+        private final String[] globs;
+
+        HashInputs(String[] globs) {
+            this.globs = globs;
+        }
+
+        public String invoke(File ws, VirtualChannel channel) throws IOException {
+            final MessageDigest digest = sha1();
+            final byte[] buffer = new byte[64 * 1024];
+            for (String glob : globs) {
+                final FileSet fs = Util.createFileSet(ws, glob);
+                final DirectoryScanner ds = fs.getDirectoryScanner();
+                final String[] files = ds.getIncludedFiles();
+                Arrays.sort(files);
+                update(digest, "glob", glob);
+                for (String file : files) {
+                    update(digest, "file", file.replace('\\', '/'));
+                    final InputStream in = new FileInputStream(new File(ds.getBasedir(), file));
+                    try {
+                        int n;
+                        while ((n = in.read(buffer)) >= 0) {
+                            digest.update(buffer, 0, n);
+                        }
+                    } finally {
+                        IOUtils.closeQuietly(in);
+                    }
+                }
+            }
+            return Util.toHexString(digest.digest());
+        }
+    }
+}
@@ -0,0 +1,463 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Failure;
+import hudson.model.ManagementLink;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import javax.servlet.ServletException;
+
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONNull;
+import net.sf.json.JSONObject;
+
+import org.apache.commons.fileupload.FileItem;
+import org.jenkinsci.lib.configprovider.ConfigProvider;
+import org.jenkinsci.lib.configprovider.model.Config;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+/**
+ * Bulk export and import of all managed scripts, batch files and libraries as a zip archive, e.g. to keep them in a version control system.
+ * <p>
+ * Each config is stored as two entries: <code>&lt;kind&gt;/&lt;id&gt;/content</code> holds the script itself, <code>&lt;kind&gt;/&lt;id&gt;/metadata.json</code>
+ * the name, comment, arguments and options. The kinds are <code>scripts</code>, <code>batch</code> and <code>libraries</code>, the export contains a
+ * directory entry for every kind, even without configs.
+ * <p>
+ * An import reports per config what changed, including a line diff of the content. The whole archive is read and every kind is validated (see
+ * {@link AbstractScriptConfigProvider#validate}) before anything is written, an archive with an invalid config changes nothing. The changes are then
+ * applied per kind (see {@link AbstractScriptConfigProvider#saveAll}), if writing fails the import stops and the kinds applied so far stay applied. With <code>dryRun=true</code> only the report is created, with <code>delete=true</code> configs missing in the archive are removed,
+ * but only for the kinds present in the archive (e.g. an archive with scripts only never removes batch files or libraries).
+ */
+@Extension
+public class BulkTransfer extends ManagementLink {
+
+    private static final String CONTENT = "content";
+    private static final String METADATA = "metadata.json";
+    private static final String UTF_8 = "UTF-8";
+
+    /**
+     * above this number of compared line pairs the diff only reports the number of lines
+     */
+    private static final long MAX_DIFF_SIZE = 4L * 1000 * 1000;
+
+    /**
+     * The kinds of configs in an archive.
+     */
+    enum Kind {
+        SCRIPTS("scripts", ScriptConfig.ScriptConfigProvider.class), BATCH("batch", WinBatchConfig.WinBatchConfigProvider.class), LIBRARIES("libraries",
+                LibraryConfig.LibraryConfigProvider.class);
+
+        final String dir;
+        final Class<? extends AbstractScriptConfigProvider> providerClass;
+
+        Kind(String dir, Class<? extends AbstractScriptConfigProvider> providerClass) {
+            this.dir = dir;
+            this.providerClass = providerClass;
+        }
+
+        AbstractScriptConfigProvider getProvider() {
+            return ConfigProvider.all().get(providerClass);
+        }
+
+        static Kind forDir(String dir) {
+            for (Kind kind : values()) {
+                if (kind.dir.equals(dir)) {
+                    return kind;
+                }
+            }
+            return null;
+        }
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "package.png";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "managed-scripts-bulk";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.bulk_name();
+    }
+
+    @Override
+    public String getDescription() {
+        return Messages.bulk_description();
+    }
+
+    /**
+     * Streams all configs as a zip archive.
+     */
+    public void doExport(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        rsp.setContentType("application/zip");
+        rsp.setHeader("Content-Disposition", "attachment; filename=managed-scripts.zip");
+        final ZipOutputStream zip = new ZipOutputStream(rsp.getOutputStream());
+        for (Kind kind : Kind.values()) {
+            final AbstractScriptConfigProvider provider = kind.getProvider();
+            if (provider == null) {
+                continue;
+            }
+            zip.putNextEntry(new ZipEntry(kind.dir + "/"));
+            zip.closeEntry();
+            for (Config metadata : provider.getCatalog().getConfigsSortedByName()) {
+                // one content at a time, the catalog does not hold them
+                final Config config = provider.getConfigById(metadata.id);
+                if (config == null) {
+                    continue;
+                }
+                final String dir = kind.dir + "/" + Util.rawEncode(config.id) + "/";
+                write(zip, dir + METADATA, toJSON(config).toString(2));
+                write(zip, dir + CONTENT, config.content == null ? "" : config.content);
+            }
+        }
+        zip.finish();
+        zip.flush();
+    }
+
+    private static void write(ZipOutputStream zip, String name, String text) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(text.getBytes(UTF_8));
+        zip.closeEntry();
+    }
+
+    /**
+     * Imports a zip archive, either uploaded as file <code>archive</code> of a multipart form or sent as request body.
+     */
+    @RequirePOST
+    public void doImport(StaplerRequest req, StaplerResponse rsp) throws IOException, ServletException {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        final String contentType = req.getContentType();
+        final boolean multipart = contentType != null && contentType.startsWith("multipart/");
+        final boolean dryRun = isSet(req, "dryRun", multipart);
+        final boolean delete = isSet(req, "delete", multipart);
+        final InputStream in;
+        if (multipart) {
+            final FileItem file = req.getFileItem("archive");
+            if (file == null) {
+                rsp.sendError(StaplerResponse.SC_BAD_REQUEST, "no archive uploaded");
+                return;
+            }
+            in = file.getInputStream();
+        } else {
+            in = req.getInputStream();
+        }
+        final JSONObject report;
+        try {
+            report = importArchive(in, dryRun, delete);
+        } finally {
+            in.close();
+        }
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(report.toString(2));
+    }
+
+    /**
+     * @return whether the given flag is set as query parameter or (multipart) form field
+     */
+    private static boolean isSet(StaplerRequest req, String name, boolean multipart) throws ServletException {
+        String value = req.getParameter(name);
+        if (value == null && multipart) {
+            final FileItem item = req.getFileItem(name);
+            value = item == null ? null : item.getString();
+        }
+        return "true".equals(value) || "on".equals(value);
+    }
+
+    /**
+     * Reads the archive and applies it.
+     *
+     * @return the report: <code>{dryRun, added: [ids], changed: [{id, changes: [...], diff: "..."}], removed: [ids], unchanged: n, errors: [...],
+     *         applied: [kinds]}</code>, <code>applied</code> lists the kinds actually written
+     */
+    JSONObject importArchive(InputStream in, boolean dryRun, boolean delete) throws IOException {
+        // kind -> id -> [content, metadata], only one archive entry is read at a time
+        final Map<Kind, Map<String, String[]>> entries = new LinkedHashMap<Kind, Map<String, String[]>>();
+        // the kinds the archive contains, even if without configs
+        final Set<Kind> present = EnumSet.noneOf(Kind.class);
+        final JSONArray errors = new JSONArray();
+        boolean valid = true;
+        final ZipInputStream zip = new ZipInputStream(in);
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            if (entry.isDirectory()) {
+                final Kind kind = Kind.forDir(entry.getName().split("/")[0]);
+                if (kind != null) {
+                    present.add(kind);
+                }
+                continue;
+            }
+            final String[] path = entry.getName().split("/");
+            final Kind kind = path.length == 3 ? Kind.forDir(path[0]) : null;
+            if (kind == null || !(CONTENT.equals(path[2]) || METADATA.equals(path[2]))) {
+                errors.add("ignored " + entry.getName());
+                continue;
+            }
+            present.add(kind);
+            Map<String, String[]> ofKind = entries.get(kind);
+            if (ofKind == null) {
+                ofKind = new LinkedHashMap<String, String[]>();
+                entries.put(kind, ofKind);
+            }
+            final String id = URLDecoder.decode(path[1].replace("+", "%2B"), UTF_8);
+            String[] parts = ofKind.get(id);
+            if (parts == null) {
+                parts = new String[2];
+                ofKind.put(id, parts);
+            }
+            parts[CONTENT.equals(path[2]) ? 0 : 1] = read(zip);
+        }
+
+        final JSONObject report = new JSONObject();
+        final JSONArray added = new JSONArray();
+        final JSONArray changed = new JSONArray();
+        final JSONArray removed = new JSONArray();
+        int unchanged = 0;
+        final Map<Kind, List<Config>> saves = new LinkedHashMap<Kind, List<Config>>();
+        final Map<Kind, List<String>> removals = new LinkedHashMap<Kind, List<String>>();
+        for (Kind kind : Kind.values()) {
+            final AbstractScriptConfigProvider provider = kind.getProvider();
+            final Map<String, String[]> ofKind = entries.containsKey(kind) ? entries.get(kind) : Collections.<String, String[]> emptyMap();
+            if (provider == null) {
+                continue;
+            }
+            final List<Config> saved = new ArrayList<Config>();
+            final List<String> toRemove = new ArrayList<String>();
+            for (Map.Entry<String, String[]> e : ofKind.entrySet()) {
+                final String id = e.getKey();
+                final Config existing = provider.getConfigById(id);
+                // a missing part keeps the current one
+                String content = e.getValue()[0];
+                if (content == null) {
+                    content = existing != null ? existing.content : "";
+                }
+                final Config imported;
+                try {
+                    JSONObject metadata = e.getValue()[1] != null ? JSONObject.fromObject(e.getValue()[1]) : null;
+                    if (metadata == null) {
+                        metadata = existing != null ? toJSON(existing) : new JSONObject();
+                    }
+                    imported = fromJSON(kind, id, metadata, content);
+                } catch (RuntimeException ex) {
+                    errors.add(kind.dir + "/" + id + ": " + ex.getMessage());
+                    valid = false;
+                    continue;
+                }
+                if (existing == null) {
+                    added.add(kind.dir + "/" + id);
+                    saved.add(imported);
+                    continue;
+                }
+                final JSONArray changes = new JSONArray();
+                final JSONObject before = toJSON(existing);
+                final JSONObject after = toJSON(imported);
+                for (Object key : after.keySet()) {
+                    if (!String.valueOf(before.opt((String) key)).equals(String.valueOf(after.opt((String) key)))) {
+                        changes.add(key + ": " + before.opt((String) key) + " -> " + after.opt((String) key));
+                    }
+                }
+                final String contentBefore = existing.content == null ? "" : existing.content;
+                final String contentAfter = imported.content == null ? "" : imported.content;
+                if (changes.isEmpty() && contentBefore.equals(contentAfter)) {
+                    unchanged++;
+                    continue;
+                }
+                final JSONObject change = new JSONObject();
+                change.put("id", kind.dir + "/" + id);
+                change.put("changes", changes);
+                if (!contentBefore.equals(contentAfter)) {
+                    change.put("diff", diff(contentBefore, contentAfter));
+                }
+                changed.add(change);
+                saved.add(imported);
+            }
+            if (delete && present.contains(kind)) {
+                for (Config config : provider.getCatalog().getConfigsSortedByName()) {
+                    if (!ofKind.containsKey(config.id)) {
+                        removed.add(kind.dir + "/" + config.id);
+                        toRemove.add(config.id);
+                    }
+                }
+            }
+            if (saved.isEmpty() && toRemove.isEmpty()) {
+                continue;
+            }
+            try {
+                provider.validate(saved, toRemove);
+            } catch (Failure f) {
+                errors.add(kind.dir + ": " + f.getMessage());
+                valid = false;
+            }
+            saves.put(kind, saved);
+            removals.put(kind, toRemove);
+        }
+
+        // only a completely valid archive is applied
+        final JSONArray applied = new JSONArray();
+        if (!dryRun && valid) {
+            for (Kind kind : saves.keySet()) {
+                try {
+                    kind.getProvider().saveAll(saves.get(kind), removals.get(kind));
+                    applied.add(kind.dir);
+                } catch (Failure f) {
+                    errors.add(kind.dir + ": " + f.getMessage());
+                    break;
+                }
+            }
+        }
+        report.put("dryRun", dryRun);
+        report.put("added", added);
+        report.put("changed", changed);
+        report.put("removed", removed);
+        report.put("unchanged", unchanged);
+        report.put("errors", errors);
+        report.put("applied", applied);
+        return report;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            bos.write(buf, 0, n);
+        }
+        return bos.toString(UTF_8);
+    }
+
+    /**
+     * @return the metadata of the given config
+     */
+    static JSONObject toJSON(Config config) {
+        final JSONObject json = new JSONObject();
+        json.put("name", config.name);
+        json.put("comment", config.comment);
+        if (config instanceof ScriptConfig) {
+            final ScriptConfig c = (ScriptConfig) config;
+            final JSONArray args = new JSONArray();
+            if (c.args != null) {
+                for (ScriptConfig.Arg arg : c.args) {
+                    args.add(arg.name);
+                }
+            }
+            json.put("args", args);
+            json.put("timeout", c.timeout);
+            json.put("includes", c.includes);
+            json.put("stdin", c.stdin);
+            json.put("cacheable", c.cacheable);
+            json.put("cacheInputs", c.cacheInputs);
+            json.put("cacheOutputs", c.cacheOutputs);
+            json.put("cacheEnv", c.cacheEnv);
+            json.put("worker", c.worker);
+            json.put("maxConcurrent", c.maxConcurrent);
+            json.put("fairQueue", c.fairQueue);
+        } else if (config instanceof WinBatchConfig) {
+            final WinBatchConfig c = (WinBatchConfig) config;
+            final JSONArray args = new JSONArray();
+            if (c.args != null) {
+                for (WinBatchConfig.Arg arg : c.args) {
+                    args.add(arg.name);
+                }
+            }
+            json.put("args", args);
+            json.put("timeout", c.timeout);
+            json.put("maxConcurrent", c.maxConcurrent);
+            json.put("fairQueue", c.fairQueue);
+        } else if (config instanceof LibraryConfig) {
+            json.put("includes", ((LibraryConfig) config).includes);
+        }
+        return json;
+    }
+
+    /**
+     * Creates a config of the given kind from its metadata and content.
+     */
+    static Config fromJSON(Kind kind, String id, JSONObject json, String content) {
+        final String name = optString(json, "name") != null ? optString(json, "name") : id;
+        final String comment = optString(json, "comment") != null ? optString(json, "comment") : "";
+        final JSONArray argNames = json.optJSONArray("args");
+        switch (kind) {
+        case SCRIPTS:
+            final List<ScriptConfig.Arg> args = new ArrayList<ScriptConfig.Arg>();
+            if (argNames != null) {
+                for (Object arg : argNames) {
+                    args.add(new ScriptConfig.Arg(String.valueOf(arg)));
+                }
+            }
+            return new ScriptConfig(id, name, comment, content, args, json.optInt("timeout", 0), optString(json, "includes"), json.optBoolean("stdin"),
+                    json.optBoolean("cacheable"), optString(json, "cacheInputs"), optString(json, "cacheOutputs"), optString(json, "cacheEnv"),
+                    json.optBoolean("worker"), json.optInt("maxConcurrent", 0), json.optBoolean("fairQueue"));
+        case BATCH:
+            final List<WinBatchConfig.Arg> batchArgs = new ArrayList<WinBatchConfig.Arg>();
+            if (argNames != null) {
+                for (Object arg : argNames) {
+                    batchArgs.add(new WinBatchConfig.Arg(String.valueOf(arg)));
+                }
+            }
+            return new WinBatchConfig(id, name, comment, content, batchArgs, json.optInt("timeout", 0), json.optInt("maxConcurrent", 0),
+                    json.optBoolean("fairQueue"));
+        default:
+            return new LibraryConfig(id, name, comment, content, optString(json, "includes"));
+        }
+    }
+
+    private static String optString(JSONObject json, String key) {
+        final Object value = json.opt(key);
+        return value == null || value instanceof JSONNull ? null : String.valueOf(value);
+    }
+
+    /**
+     * A line diff of the given texts, containing the removed (<code>-</code>) and added (<code>+</code>) lines with their line numbers.
+     */
+    static String diff(String before, String after) {
+        final String[] a = before.split("\r?\n", -1);
+        final String[] b = after.split("\r?\n", -1);
+        if ((long) a.length * b.length > MAX_DIFF_SIZE) {
+            return "content changed: " + a.length + " -> " + b.length + " lines";
+        }
+        // longest common subsequence, from the end
+        final int[][] lcs = new int[a.length + 1][b.length + 1];
+        for (int i = a.length - 1; i >= 0; i--) {
+            for (int j = b.length - 1; j >= 0; j--) {
+                lcs[i][j] = a[i].equals(b[j]) ? lcs[i + 1][j + 1] + 1 : Math.max(lcs[i + 1][j], lcs[i][j + 1]);
+            }
+        }
+        final StringBuilder sb = new StringBuilder();
+        int i = 0, j = 0;
+        while (i < a.length || j < b.length) {
+            if (i < a.length && j < b.length && a[i].equals(b[j])) {
+                i++;
+                j++;
+            } else if (j < b.length && (i == a.length || lcs[i][j + 1] >= lcs[i + 1][j])) {
+                sb.append('+').append(j + 1).append(": ").append(b[j]).append('\n');
+                j++;
+            } else {
+                sb.append('-').append(i + 1).append(": ").append(a[i]).append('\n');
+                i++;
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,138 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.jenkinsci.lib.configprovider.model.Config;
+
+/**
+ * Immutable snapshot of the configs of a provider: an index by id and a list presorted by name.
+ * <p>
+ * A new snapshot is built whenever a config is saved or removed and then swapped in as a whole, readers (builds, config pages, form validation) never
+ * have to wait for an administrator saving a config.
+ */
+public final class ConfigCatalog {
+
+    public static final ConfigCatalog EMPTY = new ConfigCatalog(Collections.<Config> emptyList());
+
+    private static final Comparator<Config> BY_NAME = new Comparator<Config>() {
+        public int compare(Config o1, Config o2) {
+            if (o1.name == null) {
+                return o2.name == null ? 0 : -1;
+            }
+            return o2.name == null ? 1 : o1.name.compareTo(o2.name);
+        }
+    };
+
+    /**
+     * upper bound for the page size of {@link #search(String, int, int)}
+     */
+    public static final int MAX_PAGE_SIZE = 100;
+
+    private final Map<String, Config> byId;
+    private final List<Config> byName;
+    // lower case name and comment of the configs in byName, used for searching
+    private final String[] names;
+    private final String[] comments;
+
+    private ConfigCatalog(Collection<Config> configs) {
+        final Map<String, Config> index = new HashMap<String, Config>(configs.size() * 4 / 3 + 1);
+        for (Config config : configs) {
+            index.put(config.id, config);
+        }
+        final List<Config> sorted = new ArrayList<Config>(configs);
+        Collections.sort(sorted, BY_NAME);
+        this.byId = Collections.unmodifiableMap(index);
+        this.byName = Collections.unmodifiableList(sorted);
+        this.names = new String[sorted.size()];
+        this.comments = new String[sorted.size()];
+        for (int i = 0; i < names.length; i++) {
+            final Config config = sorted.get(i);
+            names[i] = config.name == null ? "" : config.name.toLowerCase(Locale.ENGLISH);
+            comments[i] = config.comment == null ? "" : config.comment.toLowerCase(Locale.ENGLISH);
+        }
+    }
+
+    /**
+     * Creates a snapshot of the given configs.
+     */
+    public static ConfigCatalog of(Collection<Config> configs) {
+        return configs.isEmpty() ? EMPTY : new ConfigCatalog(configs);
+    }
+
+    /**
+     * @return the config with the given id or <code>null</code>
+     */
+    public Config get(String id) {
+        return id == null ? null : byId.get(id);
+    }
+
+    /**
+     * @return all configs, ordered by name
+     */
+    public List<Config> getConfigsSortedByName() {
+        return byName;
+    }
+
+    /**
+     * Returns the configs matching the given query: first the ones whose name starts with the query, then the ones containing it in their name or comment.
+     * Both groups are ordered by name. Matching is case insensitive, an empty query matches all configs.
+     */
+    public List<Config> find(String query) {
+        final String q = query == null ? "" : query.trim().toLowerCase(Locale.ENGLISH);
+        if (q.length() == 0) {
+            return byName;
+        }
+        final List<Config> prefixMatches = new ArrayList<Config>();
+        final List<Config> substringMatches = new ArrayList<Config>();
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].startsWith(q)) {
+                prefixMatches.add(byName.get(i));
+            } else if (names[i].indexOf(q) >= 0 || comments[i].indexOf(q) >= 0) {
+                substringMatches.add(byName.get(i));
+            }
+        }
+        prefixMatches.addAll(substringMatches);
+        return prefixMatches;
+    }
+
+    /**
+     * Returns one page of the configs matching the given query (see {@link #find(String)}) in the form expected by the script picker:
+     * <code>{total: 42, offset: 0, items: [{id: '...', name: '...', comment: '...'}]}</code>
+     */
+    public JSONObject search(String query, int offset, int limit) {
+        final List<Config> matches = find(query);
+        final int from = Math.max(0, Math.min(offset, matches.size()));
+        final int to = Math.min(matches.size(), from + Math.max(1, Math.min(limit, MAX_PAGE_SIZE)));
+        final JSONArray items = new JSONArray();
+        for (Config config : matches.subList(from, to)) {
+            final JSONObject item = new JSONObject();
+            item.put("id", config.id);
+            item.put("name", config.name);
+            item.put("comment", config.comment);
+            items.add(item);
+        }
+        final JSONObject result = new JSONObject();
+        result.put("total", matches.size());
+        result.put("offset", from);
+        result.put("items", items);
+        return result;
+    }
+
+    public boolean isEmpty() {
+        return byName.isEmpty();
+    }
+
+    public int size() {
+        return byName.size();
+    }
+}
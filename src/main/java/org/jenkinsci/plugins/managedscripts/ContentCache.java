@@ -0,0 +1,114 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.Util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Size bounded LRU cache for the contents of the configs of a provider, by config id. Contents not in the cache are loaded from the file of the config
+ * again, see {@link AbstractScriptConfigProvider}.
+ * <p>
+ * Contents can be kept compressed, which trades some CPU on each access for a smaller heap.
+ */
+final class ContentCache {
+
+    /**
+     * upper bound for the heap used by the contents of each provider
+     */
+    static long MAX_SIZE = Long.getLong(ContentCache.class.getName() + ".maxSize", 16L * 1024 * 1024);
+
+    /**
+     * keep the contents compressed in memory
+     */
+    static boolean COMPRESS = Boolean.getBoolean(ContentCache.class.getName() + ".compress");
+
+    private static final String UTF_8 = "UTF-8";
+
+    // values are either a String or the gzipped UTF-8 bytes of the content
+    private final LinkedHashMap<String, Object> entries = new LinkedHashMap<String, Object>(16, 0.75f, true);
+    private long size;
+
+    /**
+     * @return the cached content or <code>null</code> if it is not in the cache
+     */
+    synchronized String get(String id) {
+        final Object value = entries.get(id);
+        if (value == null) {
+            return null;
+        }
+        return value instanceof String ? (String) value : gunzip((byte[]) value);
+    }
+
+    synchronized void put(String id, String content) {
+        remove(id);
+        if (content == null) {
+            return;
+        }
+        final Object value = COMPRESS ? gzip(content) : content;
+        final long valueSize = sizeOf(value);
+        if (valueSize > MAX_SIZE) {
+            return; // would evict everything else
+        }
+        entries.put(id, value);
+        size += valueSize;
+        for (Iterator<Map.Entry<String, Object>> it = entries.entrySet().iterator(); size > MAX_SIZE && it.hasNext();) {
+            size -= sizeOf(it.next().getValue());
+            it.remove();
+        }
+    }
+
+    synchronized void remove(String id) {
+        final Object value = entries.remove(id);
+        if (value != null) {
+            size -= sizeOf(value);
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    private static long sizeOf(Object value) {
+        return value instanceof String ? 2L * ((String) value).length() : ((byte[]) value).length;
+    }
+
+    private static byte[] gzip(String content) {
+        try {
+            final ByteArrayOutputStream bos = new ByteArrayOutputStream(content.length() / 4 + 32);
+            final OutputStream out = new GZIPOutputStream(bos);
+            try {
+                out.write(content.getBytes(UTF_8));
+            } finally {
+                out.close();
+            }
+            return bos.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // in memory, can't happen
+        }
+    }
+
+    private static String gunzip(byte[] bytes) {
+        try {
+            final InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes));
+            try {
+                final ByteArrayOutputStream bos = new ByteArrayOutputStream(bytes.length * 4);
+                Util.copyStream(in, bos);
+                return bos.toString(UTF_8);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // in memory, can't happen
+        }
+    }
+}
@@ -0,0 +1,478 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+
+/**
+ * Durable execution of a managed script: the script runs detached from the agent process on the execution host, writing its output and exit code to
+ * files in a control directory. The build polls these files instead of waiting in a remote call, so the script survives a restart of the master, the
+ * agent or the connection between them.
+ * <p>
+ * The control directories are named after the job, the script, its arguments and the number of the build, so concurrent builds do not interfere. A
+ * build finding a running execution with the same job, script and arguments whose build is gone (e.g. because the master was restarted) adopts it: it
+ * follows its output from the beginning and takes over its exit code instead of starting the script again. Executions of gone builds that already
+ * exited are discarded, their exit code belongs to the gone build. The wrapper leads its own process group (if <code>setsid</code> is available), so
+ * killing it also kills everything the script started. Only available on Unix execution hosts.
+ */
+final class DurableExecution {
+
+    private static final Logger LOGGER = Logger.getLogger(DurableExecution.class.getName());
+
+    /**
+     * directory (relative to the root directory of the node) containing the control directories
+     */
+    static final String DIR = "managed-scripts-durable";
+
+    /**
+     * milliseconds between two polls
+     */
+    static long POLL_INTERVAL = Long.getLong(DurableExecution.class.getName() + ".pollInterval", 2000);
+
+    /**
+     * seconds to wait for a disconnected execution host to come back before giving up (the script keeps running)
+     */
+    static int RECONNECT_TIMEOUT = Integer.getInteger(DurableExecution.class.getName() + ".reconnectTimeout", 600);
+
+    /**
+     * maximum number of output bytes transferred by one poll
+     */
+    private static final int MAX_CHUNK = 1024 * 1024;
+
+    private static final String PID = "pid";
+    private static final String LOG = "log";
+    private static final String EXIT_CODE = "exit-code";
+    private static final String OWNER = "owner";
+    private static final String WRAPPER = "wrapper.sh";
+
+    /**
+     * carries the BUILD_ID of the build past the wrapper, which runs with <code>BUILD_ID=dontKillMe</code>
+     */
+    private static final String REAL_BUILD_ID = "MANAGED_SCRIPTS_BUILD_ID";
+
+    private final AbstractBuild<?, ?> build;
+    private final Node node;
+    private final TaskListener listener;
+    private final String dir;
+    private final String key;
+    private String controlDir;
+    private final int timeoutSeconds;
+    private final ScriptMetrics.Sample sample;
+
+    /**
+     * @param node
+     *            the node to execute the script on
+     * @param key
+     *            identifies the execution across builds, see {@link #key(AbstractBuild, String, String[])}
+     */
+    DurableExecution(AbstractBuild<?, ?> build, Node node, TaskListener listener, String key, int timeoutSeconds, ScriptMetrics.Sample sample)
+            throws AbortException {
+        this.build = build;
+        this.node = node;
+        this.listener = listener;
+        final FilePath root = node.getRootPath();
+        if (root == null) {
+            throw new AbortException("Cannot execute script, node '" + node.getDisplayName() + "' is offline");
+        }
+        this.dir = root.child(DIR).getRemote();
+        this.key = key;
+        this.controlDir = root.child(DIR).child(key + "-" + build.getNumber()).getRemote();
+        this.timeoutSeconds = timeoutSeconds;
+        this.sample = sample;
+    }
+
+    /**
+     * @return the prefix of the control directories of the given script and arguments in the given job, the build number is appended
+     */
+    static String key(AbstractBuild<?, ?> build, String configId, String[] args) {
+        final StringBuilder sb = new StringBuilder(build.getProject().getFullName()).append('\u0000').append(configId);
+        for (String arg : args) {
+            sb.append('\u0000').append(arg);
+        }
+        return Util.getDigestOf(sb.toString());
+    }
+
+    /**
+     * Starts the command (or reattaches to a previous execution of it) and follows it until it finished.
+     *
+     * @return the exit code
+     * @throws ProcessWatchdog.TimeoutException
+     *             if the script exceeded its budget, it has been killed
+     * @throws InterruptedException
+     *             if the build got aborted, the script has been killed
+     */
+    int run(List<String> cmds, EnvVars env, FilePath pwd) throws IOException, InterruptedException {
+        final String owner = build.getProject().getFullName() + "#" + build.getNumber();
+        String adopted = null;
+        for (Existing existing : path(dir).act(new Inspect(key))) {
+            if (existing.owner.equals(owner) || !isOrphan(existing)) {
+                continue; // a leftover of this build (replaced below) or the execution of a concurrent build
+            }
+            final String existingDir = path(dir).child(existing.name).getRemote();
+            if (!existing.alive) {
+                // exited while its build was gone, the exit code belongs to that build
+                listener.getLogger().println("discarding the durable execution of " + existing.owner + " in " + existingDir);
+                path(existingDir).act(new Kill());
+            } else if (adopted == null && path(existingDir).act(new Adopt(existing.owner, owner))) {
+                // if the adoption failed, a concurrent build took it over
+                adopted = existing.owner;
+                controlDir = existingDir;
+                listener.getLogger().println("reattaching to the durable execution of " + adopted + " in " + controlDir);
+            }
+        }
+        if (adopted == null) {
+            final Map<String, String> envs = new EnvVars(env);
+            // keep the process tree killer of the build away from the detached wrapper, the wrapper restores BUILD_ID for the script
+            if (envs.containsKey("BUILD_ID")) {
+                envs.put(REAL_BUILD_ID, envs.get("BUILD_ID"));
+            }
+            envs.put("BUILD_ID", "dontKillMe");
+            control().act(new Start(owner, new ArrayList<String>(cmds), envs, pwd.getRemote()));
+            listener.getLogger().println("started durable execution in " + controlDir);
+        }
+        sample.lap(ScriptMetrics.Phase.SPAWN);
+
+        final long start = System.currentTimeMillis();
+        long offset = 0;
+        try {
+            while (true) {
+                final Poll poll;
+                try {
+                    poll = control().act(new PollCallable(offset));
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Poll of " + controlDir + " failed", e);
+                    listener.getLogger().println("lost connection to node '" + node.getDisplayName()
+                            + "', the script keeps running, waiting for the node to reconnect");
+                    awaitReconnect();
+                    continue;
+                }
+                listener.getLogger().write(poll.output);
+                offset += poll.output.length;
+                if (poll.output.length == MAX_CHUNK) {
+                    continue; // drain the output first
+                }
+                if (poll.exitCode != null) {
+                    if (adopted != null) {
+                        listener.getLogger().println("the durable execution started by " + adopted + " exited with code " + poll.exitCode);
+                    }
+                    listener.getLogger().flush();
+                    sample.lap(ScriptMetrics.Phase.RUN);
+                    control().deleteRecursive();
+                    return poll.exitCode;
+                }
+                if (!poll.alive) {
+                    throw new AbortException("The durable execution in " + controlDir + " ended without an exit code, it was probably killed");
+                }
+                if (timeoutSeconds > 0 && System.currentTimeMillis() - start > timeoutSeconds * 1000L) {
+                    kill();
+                    throw new ProcessWatchdog.TimeoutException(timeoutSeconds);
+                }
+                Thread.sleep(POLL_INTERVAL);
+            }
+        } catch (InterruptedException e) {
+            kill();
+            throw e;
+        }
+    }
+
+    private boolean isOrphan(Existing existing) {
+        final int hash = existing.owner.lastIndexOf('#');
+        if (hash < 0 || !existing.owner.substring(0, hash).equals(build.getProject().getFullName())) {
+            return false;
+        }
+        try {
+            final AbstractBuild<?, ?> ownerBuild = build.getProject().getBuildByNumber(Integer.parseInt(existing.owner.substring(hash + 1)));
+            return ownerBuild == null || !ownerBuild.isBuilding();
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private void kill() {
+        try {
+            control().act(new Kill());
+            listener.getLogger().println("killed durable execution in " + controlDir);
+        } catch (Exception e) {
+            listener.error("failed to kill the durable execution in " + controlDir + ": " + e);
+        }
+    }
+
+    private void awaitReconnect() throws IOException, InterruptedException {
+        final long deadline = System.currentTimeMillis() + RECONNECT_TIMEOUT * 1000L;
+        while (System.currentTimeMillis() < deadline) {
+            Thread.sleep(POLL_INTERVAL);
+            if (node.toComputer() != null && node.toComputer().getChannel() != null) {
+                listener.getLogger().println("node '" + node.getDisplayName() + "' is back, following the script again");
+                return;
+            }
+        }
+        throw new AbortException("Node '" + node.getDisplayName() + "' did not reconnect within " + RECONNECT_TIMEOUT
+                + " seconds, the script may still be running in " + controlDir);
+    }
+
+    /**
+     * @return the control directory on the current channel of the node
+     */
+    private FilePath control() throws AbortException {
+        return path(controlDir);
+    }
+
+    private FilePath path(String path) throws AbortException {
+        final FilePath p = node.createPath(path);
+        if (p == null) {
+            throw new AbortException("Node '" + node.getDisplayName() + "' is offline");
+        }
+        return p;
+    }
+
+    /**
+     * An execution found in a control directory.
+     */
+    private static final class Existing implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final String name;
+        final String owner;
+        final boolean alive;
+
+        Existing(String name, String owner, boolean alive) {
+            this.name = name;
+            this.owner = owner;
+            this.alive = alive;
+        }
+    }
+
+    /**
+     * Lists the executions in the control directories of a key.
+     */
+    private static final class Inspect implements FileCallable<List<Existing>> {
+        private static final long serialVersionUID = 1L;
+
+        private final String key;
+
+        Inspect(String key) {
+            this.key = key;
+        }
+
+        public List<Existing> invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+            final List<Existing> existing = new ArrayList<Existing>();
+            final File[] controlDirs = dir.listFiles();
+            if (controlDirs != null) {
+                for (File controlDir : controlDirs) {
+                    final File owner = new File(controlDir, OWNER);
+                    if (controlDir.getName().startsWith(key + "-") && owner.isFile()) {
+                        existing.add(new Existing(controlDir.getName(), FileUtils.readFileToString(owner).trim(), isAlive(controlDir)));
+                    }
+                }
+            }
+            return existing;
+        }
+    }
+
+    /**
+     * Takes over an execution, unless another build took it over in the meantime.
+     */
+    private static final class Adopt implements FileCallable<Boolean> {
+        private static final long serialVersionUID = 1L;
+
+        private final String expected;
+        private final String owner;
+
+        Adopt(String expected, String owner) {
+            this.expected = expected;
+            this.owner = owner;
+        }
+
+        public Boolean invoke(File dir, VirtualChannel channel) throws IOException {
+            synchronized (Adopt.class) {
+                final File file = new File(dir, OWNER);
+                if (!file.isFile() || !FileUtils.readFileToString(file).trim().equals(expected)) {
+                    return false;
+                }
+                FileUtils.writeStringToFile(file, owner);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Starts the command detached: <code>nohup</code>, in the background, in a new session (so the wrapper leads a process group), without any stream
+     * connected to the agent.
+     */
+    private static final class Start implements FileCallable<Void> {
+        private static final long serialVersionUID = 1L;
+
+        private final String owner;
+        private final List<String> cmds;
+        private final Map<String, String> env;
+        private final String pwd;
+
+        Start(String owner, List<String> cmds, Map<String, String> env, String pwd) {
+            this.owner = owner;
+            this.cmds = cmds;
+            this.env = env;
+            this.pwd = pwd;
+        }
+
+        public Void invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+            // drop leftovers of an execution that was consumed, killed or never finished
+            FileUtils.deleteDirectory(dir);
+            if (!dir.mkdirs()) {
+                throw new IOException("Failed to create " + dir);
+            }
+            FileUtils.writeStringToFile(new File(dir, OWNER), owner);
+            final File wrapper = new File(dir, WRAPPER);
+            FileUtils.writeStringToFile(wrapper, "d=\"$1\"; shift\n" //
+                    + "echo $$ > \"$d/" + PID + "\"\n" //
+                    + "if [ -n \"${" + REAL_BUILD_ID + "+x}\" ]; then BUILD_ID=\"$" + REAL_BUILD_ID + "\"; export BUILD_ID; unset " + REAL_BUILD_ID
+                    + "; fi\n" //
+                    + "\"$@\" > \"$d/" + LOG + "\" 2>&1 < /dev/null\n" //
+                    + "echo $? > \"$d/" + EXIT_CODE + ".tmp\" && mv \"$d/" + EXIT_CODE + ".tmp\" \"$d/" + EXIT_CODE + "\"\n");
+
+            final StringBuilder command = new StringBuilder("s=; command -v setsid > /dev/null 2>&1 && s=setsid; nohup $s sh ")
+                    .append(quote(wrapper.getAbsolutePath())).append(' ').append(quote(dir.getAbsolutePath()));
+            for (String cmd : cmds) {
+                command.append(' ').append(quote(cmd));
+            }
+            command.append(" > /dev/null 2>&1 < /dev/null &");
+            final ProcessBuilder pb = new ProcessBuilder("sh", "-c", command.toString()).directory(new File(pwd));
+            pb.environment().clear();
+            pb.environment().putAll(env);
+            final Process p = pb.start();
+            p.getOutputStream().close();
+            final int r = p.waitFor();
+            if (r != 0) {
+                throw new IOException("Failed to start durable execution, exit code " + r);
+            }
+            // wait until the wrapper is running, so a poll does not mistake it for dead
+            for (int i = 0; i < 100 && !new File(dir, PID).isFile(); i++) {
+                Thread.sleep(50);
+            }
+            return null;
+        }
+
+        private static String quote(String s) {
+            return "'" + s.replace("'", "'\\''") + "'";
+        }
+    }
+
+    /**
+     * The output since the last poll and the state of the execution.
+     */
+    private static final class Poll implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final byte[] output;
+        final Integer exitCode;
+        final boolean alive;
+
+        Poll(byte[] output, Integer exitCode, boolean alive) {
+            this.output = output;
+            this.exitCode = exitCode;
+            this.alive = alive;
+        }
+    }
+
+    private static final class PollCallable implements FileCallable<Poll> {
+        private static final long serialVersionUID = 1L;
+
+        private final long offset;
+
+        PollCallable(long offset) {
+            this.offset = offset;
+        }
+
+        public Poll invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+            // read the exit code first, the output is complete once it exists
+            Integer exitCode = readExitCode(dir);
+            final boolean alive = exitCode == null && isAlive(dir);
+            if (exitCode == null && !alive) {
+                // the wrapper may have finished right after the first look
+                exitCode = readExitCode(dir);
+            }
+            final File log = new File(dir, LOG);
+            byte[] output = new byte[0];
+            if (log.isFile() && log.length() > offset) {
+                final RandomAccessFile raf = new RandomAccessFile(log, "r");
+                try {
+                    raf.seek(offset);
+                    output = new byte[(int) Math.min(MAX_CHUNK, raf.length() - offset)];
+                    raf.readFully(output);
+                } finally {
+                    raf.close();
+                }
+            }
+            return new Poll(output, output.length == MAX_CHUNK ? null : exitCode, alive || output.length == MAX_CHUNK);
+        }
+    }
+
+    /**
+     * Kills the execution (if it is still running) and deletes the control directory.
+     */
+    private static final class Kill implements FileCallable<Void> {
+        private static final long serialVersionUID = 1L;
+
+        public Void invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+            final String pid = readPid(dir);
+            if (pid != null && isAlive(dir)) {
+                // the process group of the wrapper, including everything the script started
+                if (exec("kill", "-TERM", "--", "-" + pid) != 0) {
+                    // started without setsid: the wrapper and the script (its child)
+                    exec("pkill", "-TERM", "-P", pid);
+                    exec("kill", "-TERM", pid);
+                }
+            }
+            FileUtils.deleteDirectory(dir);
+            return null;
+        }
+    }
+
+    private static Integer readExitCode(File dir) throws IOException {
+        final File file = new File(dir, EXIT_CODE);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            return Integer.valueOf(FileUtils.readFileToString(file).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String readPid(File dir) throws IOException {
+        final File file = new File(dir, PID);
+        return file.isFile() ? Util.fixEmptyAndTrim(FileUtils.readFileToString(file)) : null;
+    }
+
+    private static boolean isAlive(File dir) throws IOException, InterruptedException {
+        final String pid = readPid(dir);
+        return pid != null && exec("kill", "-0", pid) == 0;
+    }
+
+    private static int exec(String... cmds) throws IOException, InterruptedException {
+        final Process p = new ProcessBuilder(cmds).redirectErrorStream(true).start();
+        p.getOutputStream().close();
+        IOUtils.copy(p.getInputStream(), new NullOutputStream());
+        return p.waitFor();
+    }
+}
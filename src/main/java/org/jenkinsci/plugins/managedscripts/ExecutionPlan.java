@@ -0,0 +1,179 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The precompiled form of a {@link ScriptConfig}, everything a build needs to launch the script without looking at the content again.
+ * <p>
+ * A plan is immutable and belongs to exactly one version of a config, {@link ScriptConfig.ScriptConfigProvider} drops it as soon as the config is saved.
+ * As a plan holds the content of its script, the provider only keeps the {@link #MAX_CACHED} most recently used plans.
+ */
+public final class ExecutionPlan {
+
+    /**
+     * maximum number of plans kept by {@link ScriptConfig.ScriptConfigProvider}, the least recently used ones are compiled again when needed
+     */
+    static int MAX_CACHED = Integer.getInteger(ExecutionPlan.class.getName() + ".maxCached", 200);
+
+    /**
+     * interpreters reading the program from stdin with <code>-s</code>, all others are expected to understand <code>-</code>
+     */
+    private static final Set<String> SHELLS = new HashSet<String>(Arrays.asList("sh", "bash", "dash", "ash", "ksh", "mksh", "zsh", "csh", "tcsh"));
+
+    private final ScriptConfig config;
+    private final List<String> interpreter;
+    private final String stdinArgument;
+    private final WorkerPool.Driver workerDriver;
+    private final ConcurrentMap<String, Encoded> encodings = new ConcurrentHashMap<String, Encoded>(2);
+    // the classified arguments of the build steps executing this version, by argument list
+    private final ConcurrentMap<List<String>, MacroArgs> args = new ConcurrentHashMap<List<String>, MacroArgs>(4);
+
+    private ExecutionPlan(ScriptConfig config, List<String> interpreter) {
+        this.config = config;
+        this.interpreter = interpreter;
+        this.stdinArgument = stdinArgument(interpreter);
+        this.workerDriver = config.worker ? WorkerPool.Driver.forInterpreter(interpreter) : null;
+    }
+
+    /**
+     * Compiles the given config into a plan.
+     */
+    public static ExecutionPlan compile(ScriptConfig config) {
+        return new ExecutionPlan(config, parseInterpreterLine(config.content));
+    }
+
+    /**
+     * The config this plan was compiled from.
+     */
+    public ScriptConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * The interpreter and its arguments as defined by the hash-bang line of the script, used verbatim.
+     *
+     * @return the interpreter argv or <code>null</code> if the script does not define an interpreter and the default shell has to be used
+     */
+    public List<String> getInterpreter() {
+        return interpreter;
+    }
+
+    /**
+     * Classifies the arguments of a build step: whether they contain macros at all (see {@link MacroArgs#isLiteral()}) and if so, which. Done once per
+     * distinct argument list and version of the config, builds only look the result up.
+     *
+     * @param stepArgs
+     *            the arguments of the build step, may be <code>null</code>
+     */
+    MacroArgs getArgs(String[] stepArgs) {
+        if (stepArgs == null || stepArgs.length == 0) {
+            return MacroArgs.NONE;
+        }
+        final List<String> key = Arrays.asList(stepArgs.clone());
+        MacroArgs classified = args.get(key);
+        if (classified == null) {
+            classified = MacroArgs.of(stepArgs);
+            final MacroArgs existing = args.putIfAbsent(key, classified);
+            if (existing != null) {
+                classified = existing;
+            }
+        }
+        return classified;
+    }
+
+    /**
+     * The argument making the interpreter read the program from stdin, see {@link ScriptConfig#stdin}.
+     *
+     * @return <code>-s</code> for shells (including the default shell), <code>-</code> otherwise
+     */
+    public String getStdinArgument() {
+        return stdinArgument;
+    }
+
+    /**
+     * The driver to execute the script in a warm interpreter with, see {@link ScriptConfig#worker}.
+     *
+     * @return the driver or <code>null</code> if the script did not opt in or there is no driver for its interpreter
+     */
+    public WorkerPool.Driver getWorkerDriver() {
+        return workerDriver;
+    }
+
+    /**
+     * Returns the content of the script encoded with the given charset, together with its hash. The result is computed once per charset.
+     */
+    public Encoded encode(Charset charset) throws UnsupportedEncodingException {
+        Encoded encoded = encodings.get(charset.name());
+        if (encoded == null) {
+            final byte[] bytes = config.content.getBytes(charset.name());
+            encoded = new Encoded(bytes, ScriptCache.hash(bytes));
+            encodings.putIfAbsent(charset.name(), encoded);
+        }
+        return encoded;
+    }
+
+    /**
+     * Parses the hash-bang line of the given script. Works with LF and CRLF line endings as well as with scripts consisting of a single line only.
+     *
+     * @return the interpreter argv or <code>null</code> if there is no (usable) hash-bang line
+     */
+    static List<String> parseInterpreterLine(String content) {
+        if (content == null || !content.startsWith("#!")) {
+            return null;
+        }
+        int end = content.indexOf('\n');
+        if (end < 0) {
+            end = content.length();
+        }
+        final String interpreterLine = content.substring(2, end).trim();
+        if (interpreterLine.length() == 0) {
+            return null;
+        }
+        final List<String> elements = new ArrayList<String>();
+        for (String element : interpreterLine.split("\\s+")) {
+            elements.add(element);
+        }
+        return Collections.unmodifiableList(elements);
+    }
+
+    static String stdinArgument(List<String> interpreter) {
+        if (interpreter == null) {
+            return "-s";
+        }
+        String program = baseName(interpreter.get(0));
+        if (program.equals("env") && interpreter.size() > 1) {
+            program = baseName(interpreter.get(1)); // #!/usr/bin/env python
+        }
+        return SHELLS.contains(program) ? "-s" : "-";
+    }
+
+    static String baseName(String path) {
+        String name = path.substring(Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\')) + 1);
+        if (name.toLowerCase().endsWith(".exe")) {
+            name = name.substring(0, name.length() - 4);
+        }
+        return name;
+    }
+
+    /**
+     * The content of a script in a specific encoding.
+     */
+    public static final class Encoded {
+        public final byte[] bytes;
+        public final String hash;
+
+        Encoded(byte[] bytes, String hash) {
+            this.bytes = bytes;
+            this.hash = hash;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Action;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.kohsuke.stapler.Stapler;
+
+/**
+ * The aggregated results of the {@link FanOutScriptBuildStep}s of a build, shown on the build page. Saved with the build.
+ */
+public class FanOutReport implements Action {
+
+    private final List<Run> runs = new ArrayList<Run>();
+
+    /**
+     * Returns the report of the given build, adds it to the build on first use.
+     */
+    static FanOutReport get(AbstractBuild<?, ?> build) {
+        synchronized (build) {
+            FanOutReport report = build.getAction(FanOutReport.class);
+            if (report == null) {
+                report = new FanOutReport();
+                build.addAction(report);
+            }
+            return report;
+        }
+    }
+
+    synchronized void add(Run run) {
+        runs.add(run);
+    }
+
+    public synchronized List<Run> getRuns() {
+        return new ArrayList<Run>(runs);
+    }
+
+    /**
+     * @return the build of the report, for the side panel
+     */
+    public AbstractBuild<?, ?> getBuild() {
+        return Stapler.getCurrentRequest().findAncestorObject(AbstractBuild.class);
+    }
+
+    public String getIconFileName() {
+        return "clipboard.png";
+    }
+
+    public String getDisplayName() {
+        return Messages.fanout_report_name();
+    }
+
+    public String getUrlName() {
+        return "managed-scripts-fanout";
+    }
+
+    /**
+     * The outcome of the execution on a node.
+     */
+    public enum Status {
+        SUCCESS, FAILURE, TIMEOUT, ABORTED, ERROR, OFFLINE,
+        /**
+         * the node was skipped because the build may not use it
+         */
+        DENIED
+    }
+
+    /**
+     * The results of one fan-out step.
+     */
+    public static final class Run {
+        private final String configId;
+        private final String configName;
+        private final String label;
+        private final long started = System.currentTimeMillis();
+        private long durationMillis;
+        private final List<NodeResult> results = new ArrayList<NodeResult>();
+
+        Run(String configId, String configName, String label) {
+            this.configId = configId;
+            this.configName = configName;
+            this.label = label;
+        }
+
+        synchronized void add(NodeResult result) {
+            results.add(result);
+        }
+
+        synchronized void finish() {
+            durationMillis = System.currentTimeMillis() - started;
+        }
+
+        public String getConfigId() {
+            return configId;
+        }
+
+        public String getConfigName() {
+            return configName;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        /**
+         * @return the results by node, skipped nodes first
+         */
+        public synchronized List<NodeResult> getResults() {
+            return Collections.unmodifiableList(new ArrayList<NodeResult>(results));
+        }
+
+        public synchronized int getSucceeded() {
+            return results.size() - getFailed() - getOffline() - getDenied();
+        }
+
+        /**
+         * @return the number of nodes the script failed, timed out, was aborted or could not be executed on
+         */
+        public synchronized int getFailed() {
+            int count = 0;
+            for (NodeResult result : results) {
+                if (result.status != Status.SUCCESS && result.status != Status.OFFLINE && result.status != Status.DENIED) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        public synchronized int getOffline() {
+            return count(Status.OFFLINE);
+        }
+
+        /**
+         * @return the number of nodes skipped because the build may not use them
+         */
+        public synchronized int getDenied() {
+            return count(Status.DENIED);
+        }
+
+        private int count(Status status) {
+            int count = 0;
+            for (NodeResult result : results) {
+                if (result.status == status) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * The result of the execution on one node.
+     */
+    public static final class NodeResult {
+        private final String node;
+        private final Status status;
+        private final int exitCode;
+        private final long durationMillis;
+        private final String tail;
+
+        NodeResult(String node, Status status, int exitCode, long durationMillis, String tail) {
+            this.node = node;
+            this.status = status;
+            this.exitCode = exitCode;
+            this.durationMillis = durationMillis;
+            this.tail = tail;
+        }
+
+        public String getNode() {
+            return node;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * @return the exit code of the script, <code>-1</code> if it did not finish
+         */
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        /**
+         * @return the last lines of output, <code>null</code> if the script was not executed
+         */
+        public String getTail() {
+            return tail;
+        }
+    }
+}
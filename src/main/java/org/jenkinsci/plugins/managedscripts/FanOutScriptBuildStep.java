@@ -0,0 +1,333 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.security.Permission;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.Builder;
+import hudson.util.FormValidation;
+import hudson.util.StreamTaskListener;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import jenkins.model.Jenkins;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+import antlr.ANTLRException;
+
+/**
+ * Executes one managed script ({@link ScriptConfig}) on every online node matching a label expression, e.g. for fleet maintenance.
+ * <p>
+ * The nodes are processed concurrently, at most {@link #getParallelism()} at a time. The output of each node is prefixed with its name, the exit code,
+ * duration and the last lines of output of every node are collected in a {@link FanOutReport} of the build. The step fails if the script fails on any
+ * node, offline nodes are skipped.
+ * <p>
+ * The script is launched directly on each node, bypassing its executors: it runs next to the builds of that node and neither waits for nor occupies an
+ * executor. Therefore nodes the build is not permitted to build on ({@code Computer.BUILD}) are skipped, and so is the master unless
+ * {@link #ALLOW_MASTER} is set.
+ */
+public class FanOutScriptBuildStep extends Builder {
+
+    /**
+     * directory (relative to the root directory of each node) the script is executed in
+     */
+    public static final String WORK_DIR = "managed-scripts-fanout";
+
+    /**
+     * whether the master is one of the nodes executing the script if it matches the label expression
+     */
+    public static boolean ALLOW_MASTER = Boolean.getBoolean(FanOutScriptBuildStep.class.getName() + ".allowMaster");
+
+    private final String buildStepId;
+    private final String args;
+    private final String label;
+    private final int parallelism;
+    private final int tailLines;
+
+    /**
+     * @param buildStepId
+     *            the Id of the config file
+     * @param args
+     *            the arguments to pass to the script, one per line
+     * @param label
+     *            the label expression selecting the nodes
+     * @param parallelism
+     *            maximum number of nodes executing the script at the same time
+     * @param tailLines
+     *            number of lines at the end of the output of each node to keep in the report
+     */
+    @DataBoundConstructor
+    public FanOutScriptBuildStep(String buildStepId, String args, String label, int parallelism, int tailLines) {
+        this.buildStepId = buildStepId;
+        this.args = args;
+        this.label = Util.fixEmptyAndTrim(label);
+        this.parallelism = Math.max(1, parallelism);
+        this.tailLines = Math.max(0, tailLines);
+    }
+
+    public String getBuildStepId() {
+        return buildStepId;
+    }
+
+    public String getArgs() {
+        return args;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public int getTailLines() {
+        return tailLines;
+    }
+
+    @Override
+    public boolean perform(final AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException {
+        final ExecutionPlan plan = Jenkins.getInstance().getDescriptorByType(ScriptBuildStep.DescriptorImpl.class).getExecutionPlan(buildStepId);
+        if (plan == null) {
+            listener.getLogger().println(Messages.config_does_not_exist(buildStepId));
+            return false;
+        }
+        final Label l = Jenkins.getInstance().getLabel(label);
+        if (l == null) {
+            listener.error("no label expression given");
+            return false;
+        }
+
+        final List<Node> nodes = new ArrayList<Node>(l.getNodes());
+        Collections.sort(nodes, new Comparator<Node>() {
+            public int compare(Node a, Node b) {
+                return a.getNodeName().compareTo(b.getNodeName());
+            }
+        });
+        final FanOutReport.Run run = new FanOutReport.Run(plan.getConfig().id, plan.getConfig().name, label);
+        final Permission buildPermission = getBuildPermission();
+        final List<Node> online = new ArrayList<Node>();
+        int denied = 0;
+        for (Node node : nodes) {
+            final Computer computer = node.toComputer();
+            if (node == Jenkins.getInstance() && !ALLOW_MASTER) {
+                listener.getLogger().println("skipping master, set " + FanOutScriptBuildStep.class.getName() + ".allowMaster=true to include it");
+                run.add(new FanOutReport.NodeResult(nodeName(node), FanOutReport.Status.DENIED, -1, 0, null));
+                denied++;
+            } else if (computer == null || computer.getChannel() == null || node.getRootPath() == null) {
+                run.add(new FanOutReport.NodeResult(nodeName(node), FanOutReport.Status.OFFLINE, -1, 0, null));
+            } else if (buildPermission != null && !computer.hasPermission(buildPermission)) {
+                listener.getLogger().println("skipping " + nodeName(node) + ", the build is not permitted to build on it");
+                run.add(new FanOutReport.NodeResult(nodeName(node), FanOutReport.Status.DENIED, -1, 0, null));
+                denied++;
+            } else {
+                online.add(node);
+            }
+        }
+        FanOutReport.get(build).add(run);
+        if (online.isEmpty()) {
+            listener.error("no usable node matches '" + label + "' (" + (nodes.size() - denied) + " offline, " + denied + " not permitted)");
+            return false;
+        }
+
+        final PrintStream logger = listener.getLogger();
+        // the arguments are the same on every node, evaluate each token once per step
+        final Map<String, String> macros = new ConcurrentHashMap<String, String>();
+        final int threads = Math.min(parallelism, online.size());
+        logger.println("executing '" + plan.getConfig().name + "' on " + online.size() + " nodes matching '" + label + "', " + threads + " at a time"
+                + (nodes.size() > online.size() ? ", skipping " + (nodes.size() - online.size()) + " offline or not permitted nodes" : ""));
+        final ExecutorService pool = Executors.newFixedThreadPool(threads,
+                new ParallelScriptBuildStep.NamingThreadFactory("managed script fan-out of " + build.getFullDisplayName()));
+        final List<Future<FanOutReport.NodeResult>> results = new ArrayList<Future<FanOutReport.NodeResult>>();
+        for (final Node node : online) {
+            results.add(pool.submit(new Callable<FanOutReport.NodeResult>() {
+                public FanOutReport.NodeResult call() throws Exception {
+                    return execute(build, node, plan, macros, logger);
+                }
+            }));
+        }
+
+        boolean success = true;
+        try {
+            for (int i = 0; i < online.size(); i++) {
+                FanOutReport.NodeResult result;
+                try {
+                    result = results.get(i).get();
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace(listener.error("unexpected failure on " + nodeName(online.get(i))));
+                    result = new FanOutReport.NodeResult(nodeName(online.get(i)), FanOutReport.Status.ERROR, -1, 0, null);
+                }
+                run.add(result);
+                success &= result.getStatus() == FanOutReport.Status.SUCCESS;
+            }
+        } finally {
+            // kills the processes still running if the build got aborted
+            pool.shutdownNow();
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+            run.finish();
+            try {
+                build.save();
+            } catch (IOException e) {
+                e.printStackTrace(listener.error("failed to save the fan-out report"));
+            }
+        }
+
+        for (FanOutReport.NodeResult result : run.getResults()) {
+            logger.println(String.format("%-30s %-8s exit code %4d  %6d ms", result.getNode(), result.getStatus(), result.getExitCode(),
+                    result.getDurationMillis()));
+        }
+        return success;
+    }
+
+    private FanOutReport.NodeResult execute(AbstractBuild<?, ?> build, Node node, ExecutionPlan plan, Map<String, String> macros, PrintStream logger) {
+        final String name = nodeName(node);
+        final TailOutputStream out = new TailOutputStream(logger, "[" + name + "] ", tailLines);
+        final TaskListener child = new StreamTaskListener(out);
+        final long start = System.currentTimeMillis();
+        FanOutReport.Status status;
+        int r = -1;
+        try {
+            final Launcher launcher = node.createLauncher(child);
+            final String[] argList = new ParallelScriptBuildStep.ScriptEntry(buildStepId, args).getArgList();
+            r = new ScriptExecution(build, launcher, child, plan).args(argList).macros(macros).on(node, node.getRootPath().child(WORK_DIR)).run();
+            status = r == 0 ? FanOutReport.Status.SUCCESS : FanOutReport.Status.FAILURE;
+        } catch (ProcessWatchdog.TimeoutException e) {
+            child.error(e.getMessage());
+            status = FanOutReport.Status.TIMEOUT;
+        } catch (InterruptedException e) {
+            child.error("aborted");
+            status = FanOutReport.Status.ABORTED;
+        } catch (Exception e) {
+            e.printStackTrace(child.fatalError("Caught exception while executing script '" + plan.getConfig().name + "' on " + name));
+            status = FanOutReport.Status.ERROR;
+        } finally {
+            child.getLogger().flush();
+            try {
+                out.close();
+            } catch (IOException e) {
+                // only flushes the last line to the build log
+            }
+        }
+        return new FanOutReport.NodeResult(name, status, r, System.currentTimeMillis() - start, out.getTail());
+    }
+
+    /**
+     * @return the permission to build on a computer, <code>null</code> if Jenkins does not define it ({@code Computer.BUILD} was introduced in 1.521)
+     */
+    private static Permission getBuildPermission() {
+        return Permission.fromId(Computer.class.getName() + ".Build");
+    }
+
+    private static String nodeName(Node node) {
+        return node.getNodeName().length() == 0 ? "master" : node.getNodeName();
+    }
+
+    /**
+     * Writes whole lines prefixed to the shared build log and keeps the last lines.
+     */
+    private static final class TailOutputStream extends ParallelScriptBuildStep.PrefixingOutputStream {
+        private final int lines;
+        private final LinkedList<String> tail = new LinkedList<String>();
+
+        TailOutputStream(PrintStream out, String prefix, int lines) {
+            super(out, prefix);
+            this.lines = lines;
+        }
+
+        @Override
+        protected void eol(byte[] b, int len) throws IOException {
+            super.eol(b, len);
+            if (lines > 0) {
+                synchronized (tail) {
+                    tail.addLast(trimEOL(new String(b, 0, len)));
+                    if (tail.size() > lines) {
+                        tail.removeFirst();
+                    }
+                }
+            }
+        }
+
+        String getTail() {
+            synchronized (tail) {
+                return Util.join(tail, "\n");
+            }
+        }
+    }
+
+    /**
+     * Descriptor for {@link FanOutScriptBuildStep}.
+     */
+    @Extension(ordinal = 40)
+    public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
+
+        /**
+         * Enables this builder for all kinds of projects.
+         */
+        @Override
+        public boolean isApplicable(Class<? extends AbstractProject> aClass) {
+            return true;
+        }
+
+        /**
+         * This human readable name is used in the configuration screen.
+         */
+        @Override
+        public String getDisplayName() {
+            return Messages.fanout_buildstep_name();
+        }
+
+        public FormValidation doCheckBuildStepId(@QueryParameter String buildStepId) {
+            return getScriptDescriptor().doCheckBuildStepId(buildStepId);
+        }
+
+        public FormValidation doCheckLabel(@QueryParameter String label) {
+            if (Util.fixEmptyAndTrim(label) == null) {
+                return FormValidation.error("Label expression is required");
+            }
+            final Label l;
+            try {
+                l = Label.parseExpression(label);
+            } catch (ANTLRException e) {
+                return FormValidation.error("Invalid label expression: " + e.getMessage());
+            }
+            final int nodes = l.getNodes().size();
+            return nodes == 0 ? FormValidation.warning("No node matches this label expression") : FormValidation.ok("Matches " + nodes + " nodes");
+        }
+
+        public FormValidation doCheckParallelism(@QueryParameter String parallelism) {
+            return FormValidation.validatePositiveInteger(parallelism);
+        }
+
+        public FormValidation doCheckTailLines(@QueryParameter String tailLines) {
+            return FormValidation.validateNonNegativeInteger(tailLines);
+        }
+
+        private ScriptBuildStep.DescriptorImpl getScriptDescriptor() {
+            return Jenkins.getInstance().getDescriptorByType(ScriptBuildStep.DescriptorImpl.class);
+        }
+    }
+}
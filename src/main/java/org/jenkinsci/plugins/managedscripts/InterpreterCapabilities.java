@@ -0,0 +1,299 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.Functions;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Project;
+import hudson.model.TaskListener;
+import hudson.model.Queue.BuildableItem;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.ComputerListener;
+import hudson.tasks.Builder;
+import hudson.tasks.Shell;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Caches per {@link Computer} which interpreters are available and where, so a build does not have to ask the execution host on every execution and a
+ * script with a missing interpreter fails before anything gets staged.
+ * <p>
+ * Entries are filled lazily and dropped when the computer connects or disconnects. Missing interpreters are checked again after
+ * {@link #MISSING_TTL} seconds, so interpreters installed in the meantime are picked up without a reconnect. Optionally (see {@link #AVOID_NODES}) the
+ * queue does not hand builds to nodes known to lack the interpreter of one of their managed scripts.
+ */
+final class InterpreterCapabilities {
+
+    /**
+     * seconds after which an interpreter that was missing is looked up again
+     */
+    static int MISSING_TTL = Integer.getInteger(InterpreterCapabilities.class.getName() + ".missingTtl", 300);
+
+    /**
+     * do not schedule builds on nodes known to lack the interpreter of one of their managed scripts
+     */
+    static boolean AVOID_NODES = Boolean.getBoolean(InterpreterCapabilities.class.getName() + ".avoidNodes");
+
+    // computer name -> program and PATH -> resolution
+    private static final ConcurrentMap<String, ConcurrentMap<String, Resolution>> ALL = new ConcurrentHashMap<String, ConcurrentMap<String, Resolution>>();
+
+    private InterpreterCapabilities() {
+    }
+
+    /**
+     * Makes sure the interpreter of a script is available on the given computer. Not applicable if the launcher of the build is decorated, the
+     * process may then be started elsewhere (e.g. in a container).
+     *
+     * @param computer
+     *            the computer executing the script
+     * @param interpreter
+     *            the interpreter line, <code>null</code> for the default shell (which is not checked)
+     * @param path
+     *            the PATH of the build, used to look up interpreters given without a path (e.g. <code>#!/usr/bin/env python3</code>)
+     * @throws AbortException
+     *             if the interpreter is not available
+     */
+    static void check(Computer computer, List<String> interpreter, String path) throws IOException, InterruptedException {
+        if (interpreter == null || computer == null) {
+            return;
+        }
+        final String program = getProgram(interpreter);
+        final Resolution resolution = resolve(computer, program, path);
+        if (resolution != null && resolution.path == null) {
+            throw new AbortException("Interpreter '" + program + "' of the script (#!" + join(interpreter) + ") is not available on node '"
+                    + computer.getDisplayName() + "'");
+        }
+    }
+
+    /**
+     * Returns the default shell of the given computer, see {@link Shell.DescriptorImpl#getShellOrDefault(VirtualChannel)}.
+     */
+    static String getDefaultShell(Computer computer, VirtualChannel channel) {
+        final Shell.DescriptorImpl shell = (Shell.DescriptorImpl) Jenkins.getInstance().getDescriptor(Shell.class);
+        if (computer == null) {
+            return shell.getShellOrDefault(channel);
+        }
+        // the configured shell is part of the key, so changing it takes effect immediately
+        final String key = "\u0000shell\u0000" + shell.getShell();
+        final Map<String, Resolution> resolutions = getResolutions(computer);
+        Resolution resolution = resolutions.get(key);
+        if (resolution == null) {
+            resolution = new Resolution(shell.getShellOrDefault(channel));
+            resolutions.put(key, resolution);
+        }
+        return resolution.path;
+    }
+
+    /**
+     * @return the resolution, <code>null</code> if the computer is offline
+     */
+    private static Resolution resolve(Computer computer, String program, String path) throws IOException, InterruptedException {
+        final String key = program + "\u0000" + (isAbsolute(program) ? "" : path);
+        final Map<String, Resolution> resolutions = getResolutions(computer);
+        final Resolution cached = resolutions.get(key);
+        if (cached != null && (cached.path != null || System.currentTimeMillis() - cached.resolved < MISSING_TTL * 1000L)) {
+            return cached;
+        }
+        final VirtualChannel channel = computer.getChannel();
+        if (channel == null) {
+            return null;
+        }
+        final Resolution resolution = new Resolution(channel.call(new Lookup(program, path)));
+        resolutions.put(key, resolution);
+        return resolution;
+    }
+
+    /**
+     * @return whether the given computer is known to lack the given program (with any PATH it was looked up with)
+     */
+    static boolean isKnownMissing(Computer computer, String program) {
+        final Map<String, Resolution> resolutions = ALL.get(computer.getName());
+        if (resolutions == null) {
+            return false;
+        }
+        boolean missing = false;
+        for (Map.Entry<String, Resolution> e : resolutions.entrySet()) {
+            if (e.getKey().startsWith(program + "\u0000")) {
+                if (e.getValue().path != null) {
+                    return false;
+                }
+                missing = true;
+            }
+        }
+        return missing;
+    }
+
+    private static ConcurrentMap<String, Resolution> getResolutions(Computer computer) {
+        ConcurrentMap<String, Resolution> resolutions = ALL.get(computer.getName());
+        if (resolutions == null) {
+            final ConcurrentMap<String, Resolution> created = new ConcurrentHashMap<String, Resolution>();
+            resolutions = ALL.putIfAbsent(computer.getName(), created);
+            if (resolutions == null) {
+                resolutions = created;
+            }
+        }
+        return resolutions;
+    }
+
+    /**
+     * @return the program of the interpreter line, the argument of <code>env</code> if the script uses it to look up the interpreter
+     */
+    static String getProgram(List<String> interpreter) {
+        final String first = interpreter.get(0);
+        if (ExecutionPlan.baseName(first).equals("env") && interpreter.size() > 1) {
+            for (String element : interpreter.subList(1, interpreter.size())) {
+                if (!element.startsWith("-") && element.indexOf('=') < 0) {
+                    return element;
+                }
+            }
+        }
+        return first;
+    }
+
+    private static boolean isAbsolute(String program) {
+        return program.indexOf('/') >= 0 || program.indexOf('\\') >= 0;
+    }
+
+    private static String join(List<String> interpreter) {
+        final StringBuilder sb = new StringBuilder();
+        for (String element : interpreter) {
+            sb.append(sb.length() == 0 ? "" : " ").append(element);
+        }
+        return sb.toString();
+    }
+
+    private static final class Resolution {
+        final String path;
+        final long resolved = System.currentTimeMillis();
+
+        Resolution(String path) {
+            this.path = path;
+        }
+    }
+
+    /**
+     * Executed on the execution host: looks up a program.
+     */
+    private static final class Lookup implements Callable<String, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        private final String program;
+        private final String path;
+
+        Lookup(String program, String path) {
+            this.program = program;
+            this.path = path;
+        }
+
+        /**
+         * @return the absolute path of the program, <code>null</code> if it does not exist
+         */
+        public String call() throws IOException {
+            if (isAbsolute(program)) {
+                return executable(new File(program));
+            }
+            final String p = path != null ? path : System.getenv("PATH");
+            if (p == null) {
+                return null;
+            }
+            for (String dir : p.split(File.pathSeparator)) {
+                if (dir.length() > 0) {
+                    final String found = executable(new File(dir, program));
+                    if (found != null) {
+                        return found;
+                    }
+                }
+            }
+            return null;
+        }
+
+        private static String executable(File file) {
+            if (file.isFile() && file.canExecute()) {
+                return file.getAbsolutePath();
+            }
+            if (Functions.isWindows()) {
+                for (String extension : new String[] { ".exe", ".cmd", ".bat" }) {
+                    final File f = new File(file.getPath() + extension);
+                    if (f.isFile()) {
+                        return f.getAbsolutePath();
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Drops the resolutions of a computer when it (re)connects or disconnects, the installation of the execution host may have changed.
+     */
+    @Extension
+    public static final class ComputerListenerImpl extends ComputerListener {
+        @Override
+        public void onOnline(Computer c, TaskListener listener) {
+            ALL.remove(c.getName());
+        }
+
+        @Override
+        public void onOffline(Computer c) {
+            ALL.remove(c.getName());
+        }
+    }
+
+    /**
+     * Keeps builds away from nodes known to lack the interpreter of one of their managed scripts, if enabled with {@link #AVOID_NODES}.
+     */
+    @Extension
+    public static final class QueueTaskDispatcherImpl extends QueueTaskDispatcher {
+        @Override
+        public CauseOfBlockage canTake(Node node, BuildableItem item) {
+            if (!AVOID_NODES || !(item.task instanceof Project)) {
+                return null;
+            }
+            final Computer computer = node.toComputer();
+            if (computer == null) {
+                return null;
+            }
+            final ScriptBuildStep.DescriptorImpl descriptor = Jenkins.getInstance().getDescriptorByType(ScriptBuildStep.DescriptorImpl.class);
+            for (Builder builder : ((Project<?, ?>) item.task).getBuilders()) {
+                if (!(builder instanceof ScriptBuildStep)) {
+                    continue;
+                }
+                final ExecutionPlan plan = descriptor.getExecutionPlan(((ScriptBuildStep) builder).getBuildStepId());
+                if (plan == null || plan.getInterpreter() == null) {
+                    continue;
+                }
+                final String program = getProgram(plan.getInterpreter());
+                if (isKnownMissing(computer, program)) {
+                    return new MissingInterpreter(program, node);
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final class MissingInterpreter extends CauseOfBlockage {
+        private final String program;
+        private final Node node;
+
+        MissingInterpreter(String program, Node node) {
+            this.program = program;
+            this.node = node;
+        }
+
+        @Override
+        public String getShortDescription() {
+            return "Interpreter '" + program + "' of a managed script is not available on " + node.getDisplayName();
+        }
+    }
+}
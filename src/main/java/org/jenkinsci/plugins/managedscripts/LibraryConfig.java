@@ -0,0 +1,135 @@
+/**
+ * 
+ */
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.Extension;
+import hudson.model.Failure;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jenkinsci.lib.configprovider.model.Config;
+import org.jenkinsci.lib.configprovider.model.ContentType;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * A library of helper functions, managed scripts (and other libraries) can include it by its id.
+ * <p>
+ * The resolved libraries are placed in a directory of the workspace once per build, the path of that directory is available to the scripts in the
+ * environment variable {@link LibraryStaging#ENV_VAR}.
+ */
+public class LibraryConfig extends Config {
+
+    /**
+     * ids of the libraries this library includes, separated by comma or whitespace
+     */
+    public final String includes;
+
+    @DataBoundConstructor
+    public LibraryConfig(String id, String name, String comment, String content, String includes) {
+        super(id, name, comment, content);
+        this.includes = includes;
+    }
+
+    /**
+     * @return the ids of the libraries this library includes
+     */
+    public List<String> getIncludeIds() {
+        return parseIncludes(includes);
+    }
+
+    /**
+     * @return the name of the file this library is placed in, unique among all libraries (see {@link LibraryConfigProvider#validate(Collection, Collection)})
+     */
+    public String getFileName() {
+        if (name == null || name.length() == 0) {
+            return id;
+        }
+        final String fileName = name.replaceAll("[^\\w.-]", "_");
+        // neither ".", ".." nor hidden files or names taken for an option of the interpreter
+        return fileName.charAt(0) == '.' || fileName.charAt(0) == '-' ? "_" + fileName : fileName;
+    }
+
+    /**
+     * Parses a list of library ids, separated by comma or whitespace.
+     */
+    static List<String> parseIncludes(String includes) {
+        if (includes == null || includes.trim().length() == 0) {
+            return Collections.emptyList();
+        }
+        final List<String> ids = new ArrayList<String>();
+        for (String id : includes.trim().split("[\\s,]+")) {
+            if (id.length() > 0) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    @Extension(ordinal = 60)
+    public static class LibraryConfigProvider extends AbstractScriptConfigProvider {
+
+        public LibraryConfigProvider() {
+            load();
+        }
+
+        /**
+         * Rejects libraries that would be placed in the same file as another library (e.g. <code>util.sh</code> and <code>util?sh</code>).
+         *
+         * @throws Failure
+         *             if the file name is already used
+         */
+        @Override
+        protected void validate(Collection<? extends Config> saved, Collection<String> removed) {
+            final Set<String> changed = new HashSet<String>(removed);
+            for (Config config : saved) {
+                changed.add(config.id);
+            }
+            final Map<String, Config> byFileName = new HashMap<String, Config>();
+            for (Config config : getAllConfigs()) {
+                if (!changed.contains(config.id)) {
+                    byFileName.put(((LibraryConfig) config).getFileName(), config);
+                }
+            }
+            for (Config config : saved) {
+                final String fileName = ((LibraryConfig) config).getFileName();
+                final Config other = byFileName.put(fileName, config);
+                if (other != null) {
+                    throw new Failure("The library '" + config.name + "' would be placed in the same file (" + fileName + ") as the library '"
+                            + other.name + "', please choose another name");
+                }
+            }
+        }
+
+        @Override
+        protected Config withContent(Config config, String content) {
+            final LibraryConfig c = (LibraryConfig) config;
+            return new LibraryConfig(c.id, c.name, c.comment, content, c.includes);
+        }
+
+        @Override
+        public ContentType getContentType() {
+            return ContentType.DefinedType.HTML;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return Messages.library_provider_name();
+        }
+
+        @Override
+        public Config newConfig() {
+            String id = getProviderId() + System.currentTimeMillis();
+            return new LibraryConfig(id, "library", "", "hello() {\n    echo \"hello world\"\n}", null);
+        }
+
+    }
+
+}
@@ -0,0 +1,75 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.AbortException;
+import hudson.ExtensionList;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jenkinsci.lib.configprovider.ConfigProvider;
+import org.jenkinsci.plugins.managedscripts.LibraryConfig.LibraryConfigProvider;
+
+/**
+ * Resolves the include graph of a managed script on the master.
+ */
+final class LibraryResolver {
+
+    private final LibraryConfigProvider provider;
+
+    LibraryResolver(LibraryConfigProvider provider) {
+        this.provider = provider;
+    }
+
+    static LibraryResolver get() {
+        ExtensionList<ConfigProvider> providers = ConfigProvider.all();
+        return new LibraryResolver(providers.get(LibraryConfigProvider.class));
+    }
+
+    /**
+     * Resolves the given library ids and everything they include, transitively.
+     *
+     * @return the libraries, every library is listed after the libraries it includes
+     * @throws AbortException
+     *             if a library does not exist or the includes contain a cycle
+     */
+    List<LibraryConfig> resolve(List<String> ids) throws AbortException {
+        final Map<String, LibraryConfig> resolved = new LinkedHashMap<String, LibraryConfig>();
+        final LinkedList<String> path = new LinkedList<String>();
+        final Set<String> onPath = new HashSet<String>();
+        for (String id : ids) {
+            visit(id, resolved, path, onPath);
+        }
+        return new ArrayList<LibraryConfig>(resolved.values());
+    }
+
+    private void visit(String id, Map<String, LibraryConfig> resolved, LinkedList<String> path, Set<String> onPath) throws AbortException {
+        if (resolved.containsKey(id)) {
+            return;
+        }
+        if (onPath.contains(id)) {
+            final StringBuilder cycle = new StringBuilder();
+            for (String p : path.subList(path.indexOf(id), path.size())) {
+                cycle.append(p).append(" -> ");
+            }
+            throw new AbortException("Managed script libraries include each other: " + cycle.append(id));
+        }
+        final LibraryConfig library = provider == null ? null : (LibraryConfig) provider.getConfigById(id);
+        if (library == null) {
+            throw new AbortException("Cannot find managed script library with Id [" + id + "]"
+                    + (path.isEmpty() ? "" : ", included by [" + path.getLast() + "]"));
+        }
+        path.addLast(id);
+        onPath.add(id);
+        for (String include : library.getIncludeIds()) {
+            visit(include, resolved, path, onPath);
+        }
+        onPath.remove(id);
+        path.removeLast();
+        resolved.put(id, library);
+    }
+}
@@ -0,0 +1,188 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Keeps track of the managed script libraries already placed in the workspace of a build, so every library is transferred only once per build no
+ * matter how many managed steps include it. Every step still checks that the libraries are there, libraries removed in the meantime (e.g. by a step
+ * cleaning the workspace) are placed again.
+ * <p>
+ * The state lives on the heap of the master while the build runs, it is not an action of the build and never written to the build record.
+ */
+public final class LibraryStaging {
+
+    /**
+     * environment variable pointing to the directory containing the libraries
+     */
+    public static final String ENV_VAR = "MANAGED_SCRIPT_LIBS";
+
+    /**
+     * directory (relative to the workspace) the libraries are placed in
+     */
+    public static final String LIBS_DIR = ".managed-script-libs";
+
+    // the running builds that placed libraries, entries are dropped when the build completes
+    private static final Map<AbstractBuild<?, ?>, LibraryStaging> BUILDS = new WeakHashMap<AbstractBuild<?, ?>, LibraryStaging>();
+
+    /**
+     * file name to content hash of the libraries placed in each directory
+     */
+    private final Map<FilePath, Map<String, String>> staged = new HashMap<FilePath, Map<String, String>>();
+
+    private LibraryStaging() {
+    }
+
+    /**
+     * Places the given libraries in the workspace of the build, unless an earlier step of the build already did so.
+     *
+     * @return the directory containing the libraries
+     */
+    public static FilePath stage(AbstractBuild<?, ?> build, List<LibraryConfig> libraries, TaskListener listener) throws IOException, InterruptedException {
+        return stage(build, build.getWorkspace(), ScriptCache.getCharset(build), libraries, listener);
+    }
+
+    /**
+     * Places the given libraries in the given directory (e.g. on another node than the one of the build), unless an earlier step of the build already
+     * did so.
+     *
+     * @param workspace
+     *            the directory to place the libraries in (in its {@link #LIBS_DIR})
+     * @param charset
+     *            the charset of the node of the directory
+     * @return the directory containing the libraries
+     */
+    static FilePath stage(AbstractBuild<?, ?> build, FilePath workspace, Charset charset, List<LibraryConfig> libraries, TaskListener listener)
+            throws IOException, InterruptedException {
+        LibraryStaging staging;
+        synchronized (BUILDS) {
+            staging = BUILDS.get(build);
+            if (staging == null) {
+                staging = new LibraryStaging();
+                BUILDS.put(build, staging);
+            }
+        }
+        return staging.doStage(workspace.child(LIBS_DIR), charset, libraries, listener);
+    }
+
+    private synchronized FilePath doStage(FilePath dir, Charset charset, List<LibraryConfig> libraries, TaskListener listener) throws IOException,
+            InterruptedException {
+        Map<String, String> staged = this.staged.get(dir);
+        if (staged == null) {
+            staged = new HashMap<String, String>();
+            this.staged.put(dir, staged);
+        }
+        final Map<String, String> ids = new HashMap<String, String>();
+        final Map<String, byte[]> all = new HashMap<String, byte[]>();
+        final Map<String, byte[]> missing = new HashMap<String, byte[]>();
+        for (LibraryConfig library : libraries) {
+            final String fileName = library.getFileName();
+            final String other = ids.put(fileName, library.id);
+            if (other != null && !other.equals(library.id)) {
+                throw new AbortException("Managed script libraries '" + other + "' and '" + library.id + "' would both be placed in " + fileName
+                        + ", please rename one of them");
+            }
+            final byte[] bytes = library.content.getBytes(charset.name());
+            final String hash = ScriptCache.hash(bytes);
+            all.put(fileName, bytes);
+            if (!hash.equals(staged.get(fileName))) {
+                missing.put(fileName, bytes);
+                staged.put(fileName, hash);
+            }
+        }
+        if (!missing.isEmpty()) {
+            listener.getLogger().println("placing " + missing.size() + " managed script libraries in " + dir.getRemote());
+        }
+        try {
+            final Set<String> expected = new HashSet<String>(all.keySet());
+            expected.removeAll(missing.keySet());
+            final Set<String> removed = dir.act(new Write(missing, expected));
+            if (!removed.isEmpty()) {
+                listener.getLogger().println("placing " + removed.size() + " managed script libraries removed from " + dir.getRemote() + " again");
+                all.keySet().retainAll(removed);
+                dir.act(new Write(all, Collections.<String> emptySet()));
+            }
+        } catch (IOException e) {
+            staged.keySet().removeAll(all.keySet());
+            throw e;
+        }
+        return dir;
+    }
+
+    /**
+     * Writes all libraries of a step and checks that the ones placed by earlier steps are still there, in a single remote call.
+     */
+    private static final class Write implements FileCallable<Set<String>> {
+        private static final long serialVersionUID = 1L;
+
+        private final Map<String, byte[]> files;
+        private final Set<String> expected;
+
+        /**
+         * @param files
+         *            the libraries to write, by file name
+         * @param expected
+         *            the file names of the libraries placed by earlier steps
+         */
+        Write(Map<String, byte[]> files, Set<String> expected) {
+            this.files = files;
+            this.expected = expected;
+        }
+
+        /**
+         * @return the file names of the expected libraries which no longer exist
+         */
+        public Set<String> invoke(File dir, VirtualChannel channel) throws IOException {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Failed to create " + dir);
+            }
+            for (Map.Entry<String, byte[]> e : files.entrySet()) {
+                final OutputStream out = new FileOutputStream(new File(dir, e.getKey()));
+                try {
+                    out.write(e.getValue());
+                } finally {
+                    out.close();
+                }
+            }
+            final Set<String> removed = new HashSet<String>();
+            for (String name : expected) {
+                if (!new File(dir, name).isFile()) {
+                    removed.add(name);
+                }
+            }
+            return removed;
+        }
+    }
+
+    /**
+     * Forgets the libraries placed by a build once it completed.
+     */
+    @Extension
+    public static final class Cleanup extends RunListener<AbstractBuild<?, ?>> {
+        @Override
+        public void onCompleted(AbstractBuild<?, ?> build, TaskListener listener) {
+            synchronized (BUILDS) {
+                BUILDS.remove(build);
+            }
+        }
+    }
+}
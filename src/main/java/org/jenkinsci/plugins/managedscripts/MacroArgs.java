@@ -0,0 +1,194 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.EnvVars;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+import hudson.util.VariableResolver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
+import org.jenkinsci.plugins.tokenmacro.TokenMacro;
+
+/**
+ * The arguments of a build step, classified once into literals and templates.
+ * <p>
+ * Literals never go through the macro engine. Templates are split into literal text and tokens (<code>${TOKEN,arg="value"}</code>, <code>$VAR</code>),
+ * all tokens of all arguments are expanded in one pass, so an expensive token used by several arguments (e.g. <code>${CHANGES}</code>,
+ * <code>${FILE,path="..."}</code>) is only evaluated once, and the environment of the build is resolved once for all of them. The results are remembered for one build step at most (see
+ * {@link #expand(AbstractBuild, TaskListener, Map)}), an earlier step may have changed the environment or the files a token reads. Arguments the
+ * tokenizer does not understand (e.g. <code>$$</code> escapes) are expanded as a whole.
+ */
+final class MacroArgs {
+
+    static final MacroArgs NONE = new MacroArgs(new String[0]);
+
+    private final String[] args;
+    // per argument: null for a literal, otherwise alternating literal text (even indices) and tokens (odd indices)
+    private final String[][] templates;
+    private final boolean literal;
+
+    private MacroArgs(String[] args) {
+        this.args = args;
+        this.templates = new String[args.length][];
+        boolean allLiteral = true;
+        for (int i = 0; i < args.length; i++) {
+            templates[i] = parse(args[i]);
+            allLiteral &= templates[i] == null;
+        }
+        this.literal = allLiteral;
+    }
+
+    /**
+     * Classifies the given arguments.
+     *
+     * @param args
+     *            the arguments, may be <code>null</code>
+     */
+    static MacroArgs of(String[] args) {
+        return args == null || args.length == 0 ? NONE : new MacroArgs(args.clone());
+    }
+
+    /**
+     * @return <code>true</code> if none of the arguments contains a macro
+     */
+    boolean isLiteral() {
+        return literal;
+    }
+
+    int size() {
+        return args.length;
+    }
+
+    /**
+     * Expands the arguments for the given build.
+     *
+     * @return the expanded arguments, in the original order
+     */
+    String[] expand(AbstractBuild<?, ?> build, TaskListener listener) throws MacroEvaluationException, IOException, InterruptedException {
+        return expand(build, listener, null);
+    }
+
+    /**
+     * Expands the arguments for the given build, sharing the results of the tokens with other arguments expanded by the same build step.
+     *
+     * @param memo
+     *            the results of the tokens already evaluated by the build step, gets the newly evaluated ones, <code>null</code> to only share the
+     *            results among these arguments
+     * @return the expanded arguments, in the original order
+     */
+    String[] expand(AbstractBuild<?, ?> build, TaskListener listener, Map<String, String> memo) throws MacroEvaluationException, IOException,
+            InterruptedException {
+        if (literal) {
+            return args.clone();
+        }
+        // evaluate every distinct token once
+        final Set<String> tokens = new LinkedHashSet<String>();
+        for (String[] template : templates) {
+            if (template != null) {
+                for (int i = 1; i < template.length; i += 2) {
+                    tokens.add(template[i]);
+                }
+            }
+        }
+        final Map<String, String> results = memo != null ? memo : new HashMap<String, String>();
+        EnvVars env = null;
+        VariableResolver<String> buildVariables = null;
+        for (String token : tokens) {
+            if (!results.containsKey(token)) {
+                if (env == null) {
+                    env = build.getEnvironment(listener);
+                    buildVariables = build.getBuildVariableResolver();
+                }
+                // same as TokenMacro.expandAll(), which would resolve the environment for every token
+                final String s = Util.replaceMacro(env.expand(token), buildVariables);
+                results.put(token, TokenMacro.expand(build, listener, s, false, null));
+            }
+        }
+
+        final String[] expanded = new String[args.length];
+        for (int a = 0; a < args.length; a++) {
+            final String[] template = templates[a];
+            if (template == null) {
+                expanded[a] = args[a];
+                continue;
+            }
+            final StringBuilder sb = new StringBuilder(args[a].length() + 16);
+            for (int i = 0; i < template.length; i++) {
+                sb.append(i % 2 == 0 ? template[i] : results.get(template[i]));
+            }
+            expanded[a] = sb.toString();
+        }
+        return expanded;
+    }
+
+    /**
+     * Splits the given argument into literal text and tokens.
+     *
+     * @return <code>null</code> if the argument is a literal
+     */
+    static String[] parse(String arg) {
+        if (arg == null || arg.indexOf('$') < 0) {
+            return null;
+        }
+        final List<String> parts = new ArrayList<String>();
+        int literalStart = 0;
+        int i = 0;
+        while (i < arg.length()) {
+            if (arg.charAt(i) != '$') {
+                i++;
+                continue;
+            }
+            final int end = tokenEnd(arg, i);
+            if (end < 0) {
+                // leave anything unusual to the macro engine
+                return new String[] { "", arg, "" };
+            }
+            parts.add(arg.substring(literalStart, i));
+            parts.add(arg.substring(i, end));
+            literalStart = end;
+            i = end;
+        }
+        parts.add(arg.substring(literalStart));
+        return parts.toArray(new String[parts.size()]);
+    }
+
+    /**
+     * @return the index after the token starting at the given <code>$</code>, <code>-1</code> if it is not a simple token
+     */
+    private static int tokenEnd(String arg, int start) {
+        int i = start + 1;
+        if (i >= arg.length()) {
+            return -1;
+        }
+        final char c = arg.charAt(i);
+        if (c == '{') {
+            boolean quoted = false;
+            for (i++; i < arg.length(); i++) {
+                final char d = arg.charAt(i);
+                if (quoted && d == '\\') {
+                    i++;
+                } else if (d == '"') {
+                    quoted = !quoted;
+                } else if (d == '}' && !quoted) {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+        if (!Character.isLetter(c) && c != '_') {
+            return -1;
+        }
+        while (i < arg.length() && (Character.isLetterOrDigit(arg.charAt(i)) || arg.charAt(i) == '_')) {
+            i++;
+        }
+        return i;
+    }
+}
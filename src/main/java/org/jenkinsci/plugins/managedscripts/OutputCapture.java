@@ -0,0 +1,269 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Output mode of a build step for very chatty scripts.
+ * <p>
+ * The full output of the script is written to a compressed file in the workspace of the execution host, the console only gets the first and the last lines.
+ * The head is additionally limited by a byte and line rate, at the end a summary of what was dropped is printed. As the process is launched on the execution
+ * host itself (see {@link AgentExecution}), the dropped output never travels to the master. Only the last {@link #KEEP} files of each script are kept in
+ * the workspace.
+ * <p>
+ * If the launcher of the build is decorated (e.g. by a build wrapper), the process has to be started through it and its output arrives on the master
+ * anyway, then the file is written to the directory of the build and removed together with the build.
+ */
+public class OutputCapture implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * directory (relative to the workspace) to write the captured output to
+     */
+    public static final String OUTPUT_DIR = "managed-scripts-output";
+
+    /**
+     * number of output files kept per script in the output directory of a workspace, older files are deleted (read on the execution host)
+     */
+    public static int KEEP = Integer.getInteger(OutputCapture.class.getName() + ".keep", 10);
+
+    private static final Pattern OUTPUT_FILE = Pattern.compile("(.*)-\\d+-\\d+\\.log\\.gz");
+
+    /**
+     * lines longer than this are truncated on the console
+     */
+    private static final int MAX_LINE_LENGTH = 4096;
+
+    public final int headLines;
+    public final int tailLines;
+    public final int maxLinesPerSecond;
+    public final long maxBytesPerSecond;
+
+    /**
+     * @param headLines
+     *            number of lines at the beginning of the output to show on the console
+     * @param tailLines
+     *            number of lines at the end of the output to show on the console
+     * @param maxLinesPerSecond
+     *            maximum number of head lines per second to show on the console, <code>0</code> for no limit
+     * @param maxBytesPerSecond
+     *            maximum number of head bytes per second to show on the console, <code>0</code> for no limit
+     */
+    @DataBoundConstructor
+    public OutputCapture(int headLines, int tailLines, int maxLinesPerSecond, long maxBytesPerSecond) {
+        this.headLines = Math.max(0, headLines);
+        this.tailLines = Math.max(0, tailLines);
+        this.maxLinesPerSecond = Math.max(0, maxLinesPerSecond);
+        this.maxBytesPerSecond = Math.max(0, maxBytesPerSecond);
+    }
+
+    /**
+     * Returns the file the output of the given script is written to.
+     *
+     * @param build
+     *            the running build
+     * @param pwd
+     *            the working directory (the workspace)
+     * @param name
+     *            name of the script
+     */
+    public FilePath getOutputFile(AbstractBuild<?, ?> build, FilePath pwd, String name) {
+        return pwd.child(OUTPUT_DIR).child(fileName(build, name));
+    }
+
+    /**
+     * Returns the file in the directory of the build the output of the given script is written to, used if the output passes the master anyway.
+     *
+     * @param build
+     *            the running build
+     * @param name
+     *            name of the script
+     */
+    public File getBuildOutputFile(AbstractBuild<?, ?> build, String name) {
+        return new File(new File(build.getRootDir(), OUTPUT_DIR), fileName(build, name));
+    }
+
+    private static String fileName(AbstractBuild<?, ?> build, String name) {
+        return name.replaceAll("[^\\w.-]", "_") + "-" + build.getNumber() + "-" + System.currentTimeMillis() + ".log.gz";
+    }
+
+    /**
+     * Executed on the execution host: opens the stream capturing the output of the process. Closing it prints the tail and the summary to the console.
+     *
+     * @param file
+     *            the output file, see {@link #getOutputFile(AbstractBuild, FilePath, String)}
+     * @param console
+     *            gets the head, tail and summary of the output
+     */
+    OutputStream open(File file, PrintStream console) throws IOException {
+        file.getParentFile().mkdirs();
+        prune(file);
+        return new CapturingOutputStream(this, file, console);
+    }
+
+    /**
+     * Deletes the oldest output files of the same script, so that there are at most {@link #KEEP} including the given one.
+     */
+    private static void prune(File file) {
+        final Matcher m = OUTPUT_FILE.matcher(file.getName());
+        final File[] files = file.getParentFile().listFiles();
+        if (!m.matches() || files == null) {
+            return;
+        }
+        final List<File> previous = new ArrayList<File>();
+        for (File f : files) {
+            final Matcher other = OUTPUT_FILE.matcher(f.getName());
+            if (other.matches() && other.group(1).equals(m.group(1)) && !f.equals(file)) {
+                previous.add(f);
+            }
+        }
+        Collections.sort(previous, new Comparator<File>() {
+            public int compare(File o1, File o2) {
+                final long l1 = o1.lastModified(), l2 = o2.lastModified();
+                return l1 < l2 ? -1 : l1 == l2 ? 0 : 1;
+            }
+        });
+        for (int i = 0; i < previous.size() - Math.max(0, KEEP - 1); i++) {
+            previous.get(i).delete();
+        }
+    }
+
+    /**
+     * Writes everything to the output file and forwards the head and tail lines to the console.
+     */
+    static final class CapturingOutputStream extends OutputStream {
+        private final OutputCapture capture;
+        private final File file;
+        private final OutputStream full;
+        private final PrintStream console;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+        private final LinkedList<byte[]> tail = new LinkedList<byte[]>();
+
+        private long lines, bytes;
+        private long droppedByRate, omitted;
+        private long windowStart, windowLines, windowBytes;
+        private boolean closed;
+
+        CapturingOutputStream(OutputCapture capture, File file, PrintStream console) throws IOException {
+            this.capture = capture;
+            this.file = file;
+            this.full = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+            this.console = console;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            full.write(b);
+            bytes++;
+            if (b == '\n') {
+                endLine();
+            } else if (line.size() < MAX_LINE_LENGTH) {
+                line.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            full.write(b, off, len);
+            bytes += len;
+            int start = off;
+            final int end = off + len;
+            for (int i = off; i < end; i++) {
+                if (b[i] == '\n') {
+                    appendToLine(b, start, i - start);
+                    endLine();
+                    start = i + 1;
+                }
+            }
+            appendToLine(b, start, end - start);
+        }
+
+        private void appendToLine(byte[] b, int off, int len) {
+            line.write(b, off, Math.min(len, MAX_LINE_LENGTH - line.size()));
+        }
+
+        private void endLine() {
+            line.write('\n');
+            final byte[] current = line.toByteArray();
+            line.reset();
+            lines++;
+            if (lines <= capture.headLines) {
+                if (allowedByRate(current.length)) {
+                    console.write(current, 0, current.length);
+                } else {
+                    droppedByRate++;
+                }
+            } else if (capture.tailLines > 0) {
+                tail.addLast(current);
+                if (tail.size() > capture.tailLines) {
+                    tail.removeFirst();
+                    omitted++;
+                }
+            } else {
+                omitted++;
+            }
+        }
+
+        private boolean allowedByRate(int length) {
+            final long now = System.currentTimeMillis();
+            if (now - windowStart >= 1000) {
+                windowStart = now;
+                windowLines = 0;
+                windowBytes = 0;
+            }
+            if ((capture.maxLinesPerSecond > 0 && windowLines >= capture.maxLinesPerSecond)
+                    || (capture.maxBytesPerSecond > 0 && windowBytes + length > capture.maxBytesPerSecond)) {
+                return false;
+            }
+            windowLines++;
+            windowBytes += length;
+            return true;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            full.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (line.size() > 0) {
+                endLine();
+            }
+            full.close();
+            if (omitted > 0) {
+                console.println("[...] " + omitted + " lines omitted [...]");
+            }
+            for (byte[] l : tail) {
+                console.write(l, 0, l.length);
+            }
+            console.println("script wrote " + lines + " lines (" + bytes + " bytes), " + (droppedByRate + omitted) + " lines not shown on the console ("
+                    + droppedByRate + " dropped by the rate limit), full output: " + file.getAbsolutePath() + " (" + file.length() + " bytes compressed)");
+            console.flush();
+        }
+    }
+}
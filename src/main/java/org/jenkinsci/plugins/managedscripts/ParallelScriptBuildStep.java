@@ -0,0 +1,269 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.console.LineTransformationOutputStream;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.TaskListener;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.Builder;
+import hudson.util.FormValidation;
+import hudson.util.StreamTaskListener;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jenkins.model.Jenkins;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+/**
+ * Executes several managed scripts ({@link ScriptConfig}) concurrently on the execution host of the build.
+ * <p>
+ * The output of each script is prefixed with its name, the number of scripts running at the same time is limited. With fail-fast enabled, the remaining
+ * scripts are killed as soon as one of them fails.
+ */
+public class ParallelScriptBuildStep extends Builder {
+
+    private final List<ScriptEntry> scripts;
+    private final int parallelism;
+    private final boolean failFast;
+
+    /**
+     * A script to execute together with its arguments.
+     */
+    public static final class ScriptEntry {
+        private final String buildStepId;
+        private final String args;
+
+        /**
+         * @param buildStepId
+         *            the Id of the config file
+         * @param args
+         *            the arguments to pass to the script, one per line
+         */
+        @DataBoundConstructor
+        public ScriptEntry(String buildStepId, String args) {
+            this.buildStepId = buildStepId;
+            this.args = args;
+        }
+
+        public String getBuildStepId() {
+            return buildStepId;
+        }
+
+        public String getArgs() {
+            return args;
+        }
+
+        /**
+         * @return the arguments, one per line of {@link #getArgs()}
+         */
+        public String[] getArgList() {
+            if (Util.fixEmpty(args) == null) {
+                return null;
+            }
+            final List<String> l = new ArrayList<String>();
+            for (String arg : args.split("\r?\n")) {
+                l.add(arg);
+            }
+            // ignore the empty lines at the end of the text area
+            while (!l.isEmpty() && l.get(l.size() - 1).trim().length() == 0) {
+                l.remove(l.size() - 1);
+            }
+            return l.toArray(new String[l.size()]);
+        }
+    }
+
+    /**
+     * @param scripts
+     *            the scripts to execute
+     * @param parallelism
+     *            maximum number of scripts running at the same time
+     * @param failFast
+     *            whether to kill the remaining scripts as soon as one fails
+     */
+    @DataBoundConstructor
+    public ParallelScriptBuildStep(List<ScriptEntry> scripts, int parallelism, boolean failFast) {
+        this.scripts = scripts == null ? Collections.<ScriptEntry> emptyList() : new ArrayList<ScriptEntry>(scripts);
+        this.parallelism = Math.max(1, parallelism);
+        this.failFast = failFast;
+    }
+
+    public List<ScriptEntry> getScripts() {
+        return Collections.unmodifiableList(scripts);
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public boolean isFailFast() {
+        return failFast;
+    }
+
+    @Override
+    public boolean perform(final AbstractBuild<?, ?> build, final Launcher launcher, BuildListener listener) throws InterruptedException {
+        final ScriptBuildStep.DescriptorImpl scriptDescriptor = Jenkins.getInstance().getDescriptorByType(ScriptBuildStep.DescriptorImpl.class);
+        final List<ExecutionPlan> plans = new ArrayList<ExecutionPlan>();
+        for (ScriptEntry entry : scripts) {
+            final ExecutionPlan plan = scriptDescriptor.getExecutionPlan(entry.getBuildStepId());
+            if (plan == null) {
+                listener.getLogger().println(Messages.config_does_not_exist(entry.getBuildStepId()));
+                return false;
+            }
+            plans.add(plan);
+        }
+        if (plans.isEmpty()) {
+            return true;
+        }
+
+        final PrintStream logger = listener.getLogger();
+        // a token used by several scripts is evaluated once per step
+        final Map<String, String> macros = new ConcurrentHashMap<String, String>();
+        final ExecutorService pool = Executors.newFixedThreadPool(Math.min(parallelism, plans.size()), new NamingThreadFactory("managed scripts of " + build.getFullDisplayName()));
+        final CompletionService<Integer> completion = new ExecutorCompletionService<Integer>(pool);
+        listener.getLogger().println("executing " + plans.size() + " scripts, " + Math.min(parallelism, plans.size()) + " at a time");
+        for (int i = 0; i < plans.size(); i++) {
+            final ExecutionPlan plan = plans.get(i);
+            final ScriptEntry entry = scripts.get(i);
+            completion.submit(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    final PrefixingOutputStream out = new PrefixingOutputStream(logger, "[" + plan.getConfig().name + "] ");
+                    final TaskListener child = new StreamTaskListener(out);
+                    try {
+                        final int r = new ScriptExecution(build, launcher, child, plan).args(entry.getArgList()).macros(macros).run();
+                        child.getLogger().println("finished with exit code " + r);
+                        return r;
+                    } catch (ProcessWatchdog.TimeoutException e) {
+                        child.error(e.getMessage());
+                        return -1;
+                    } catch (InterruptedException e) {
+                        child.error("aborted");
+                        return -1;
+                    } catch (Exception e) {
+                        e.printStackTrace(child.fatalError("Caught exception while executing script '" + plan.getConfig().name + "'"));
+                        return -1;
+                    } finally {
+                        child.getLogger().flush();
+                        out.close();
+                    }
+                }
+            });
+        }
+
+        boolean success = true;
+        try {
+            for (int i = 0; i < plans.size(); i++) {
+                final int r;
+                try {
+                    r = completion.take().get();
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace(listener.error("unexpected failure"));
+                    success = false;
+                    continue;
+                }
+                if (r != 0) {
+                    success = false;
+                    if (failFast) {
+                        listener.error("a script failed, killing the remaining scripts (fail-fast)");
+                        break;
+                    }
+                }
+            }
+        } finally {
+            // kills the processes of the scripts still running
+            pool.shutdownNow();
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        return success;
+    }
+
+    /**
+     * Writes whole lines prefixed to the shared build log.
+     */
+    static class PrefixingOutputStream extends LineTransformationOutputStream {
+        private final PrintStream out;
+        private final byte[] prefix;
+
+        PrefixingOutputStream(PrintStream out, String prefix) {
+            this.out = out;
+            this.prefix = prefix.getBytes();
+        }
+
+        @Override
+        protected void eol(byte[] b, int len) throws IOException {
+            synchronized (out) {
+                out.write(prefix);
+                out.write(b, 0, len);
+            }
+        }
+    }
+
+    /**
+     * Names the daemon threads executing the scripts of a build.
+     */
+    static final class NamingThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        /**
+         * @param name
+         *            the prefix of the thread names
+         */
+        NamingThreadFactory(String name) {
+            this.name = name;
+        }
+
+        public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r, name + " #" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    /**
+     * Descriptor for {@link ParallelScriptBuildStep}.
+     */
+    @Extension(ordinal = 45)
+    public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
+
+        /**
+         * Enables this builder for all kinds of projects.
+         */
+        @Override
+        public boolean isApplicable(Class<? extends AbstractProject> aClass) {
+            return true;
+        }
+
+        /**
+         * This human readable name is used in the configuration screen.
+         */
+        @Override
+        public String getDisplayName() {
+            return Messages.parallel_buildstep_name();
+        }
+
+        public FormValidation doCheckParallelism(@QueryParameter String parallelism) {
+            return FormValidation.validatePositiveInteger(parallelism);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.AbortException;
+import hudson.Proc;
+import hudson.Util;
+import hudson.model.Failure;
+
+import java.io.IOException;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Enforces the execution budget of a managed script: waits for a launched process and kills the whole process tree once the timeout expires.
+ * <p>
+ * Works on the master as well as on the execution host, depending on where the {@link Proc} was started.
+ */
+public final class ProcessWatchdog {
+
+    private static final Logger LOGGER = Logger.getLogger(ProcessWatchdog.class.getName());
+
+    private static Timer timer;
+
+    private ProcessWatchdog() {
+    }
+
+    /**
+     * Waits for the given process to finish.
+     *
+     * @param proc
+     *            the launched process
+     * @param timeoutSeconds
+     *            the budget of the process, <code>0</code> to wait forever
+     * @return the exit code of the process
+     * @throws TimeoutException
+     *             if the process tree had to be killed because the budget was exceeded
+     */
+    public static int join(final Proc proc, int timeoutSeconds) throws IOException, InterruptedException {
+        if (timeoutSeconds <= 0) {
+            return proc.join();
+        }
+        final AtomicBoolean expired = new AtomicBoolean();
+        final TimerTask kill = new TimerTask() {
+            @Override
+            public void run() {
+                expired.set(true);
+                try {
+                    proc.kill(); // kills the whole process tree
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Failed to kill process after timeout", e);
+                }
+            }
+        };
+        getTimer().schedule(kill, timeoutSeconds * 1000L);
+        final int r;
+        try {
+            r = proc.join();
+        } finally {
+            kill.cancel();
+        }
+        if (expired.get()) {
+            throw new TimeoutException(timeoutSeconds);
+        }
+        return r;
+    }
+
+    /**
+     * Runs the given task periodically on the watchdog timer.
+     */
+    static void schedule(TimerTask task, long periodMillis) {
+        getTimer().schedule(task, periodMillis, periodMillis);
+    }
+
+    private static synchronized Timer getTimer() {
+        if (timer == null) {
+            timer = new Timer("managed-scripts watchdog", true);
+        }
+        return timer;
+    }
+
+    /**
+     * Parses the timeout override of a build step.
+     *
+     * @return the timeout in seconds or <code>null</code> if the step does not override the timeout of the script
+     * @throws Failure
+     *             if the timeout is not a non-negative number of seconds, the same check as <code>doCheckTimeout</code> of the steps
+     */
+    public static Integer parseTimeout(String timeout) {
+        final String t = Util.fixEmptyAndTrim(timeout);
+        if (t == null) {
+            return null;
+        }
+        try {
+            final int seconds = Integer.parseInt(t);
+            if (seconds >= 0) {
+                return seconds;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new Failure("Invalid timeout '" + t + "', expected a number of seconds (0 or more)");
+    }
+
+    /**
+     * Thrown if a script exceeded its budget and got killed. Extends {@link AbortException} so it passes remote file operations unwrapped.
+     */
+    public static final class TimeoutException extends AbortException {
+        private static final long serialVersionUID = 1L;
+
+        public final int timeoutSeconds;
+
+        public TimeoutException(int timeoutSeconds) {
+            super("Script did not finish within " + timeoutSeconds + " seconds, killed the process tree");
+            this.timeoutSeconds = timeoutSeconds;
+        }
+    }
+}
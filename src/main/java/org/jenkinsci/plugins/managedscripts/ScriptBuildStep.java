@@ -1,39 +1,31 @@
 package org.jenkinsci.plugins.managedscripts;
 
-import hudson.EnvVars;
 import hudson.Extension;
 import hudson.ExtensionList;
-import hudson.FilePath;
 import hudson.Launcher;
 import hudson.Util;
 import hudson.model.BuildListener;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
-import hudson.model.Computer;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
-import hudson.tasks.Shell;
-import hudson.util.ArgumentListBuilder;
 import hudson.util.FormValidation;
-import hudson.util.VariableResolver;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
 
 import org.jenkinsci.lib.configprovider.ConfigProvider;
 import org.jenkinsci.lib.configprovider.model.Config;
 import org.jenkinsci.plugins.managedscripts.ScriptConfig.Arg;
 import org.jenkinsci.plugins.managedscripts.ScriptConfig.ScriptConfigProvider;
-import org.jenkinsci.plugins.tokenmacro.TokenMacro;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.bind.JavaScriptMethod;
@@ -54,6 +46,9 @@ public class ScriptBuildStep extends Builder {
 
     private final String buildStepId;
     private final String[] buildStepArgs;
+    private final OutputCapture outputCapture;
+    private final Integer timeout;
+    private final boolean durable;
 
     public static class ArgValue {
         public final String arg;
@@ -83,11 +78,20 @@ public class ScriptBuildStep extends Builder {
      *            the Id of the config file
      * @param scriptBuildStepArgs
      *            whether to save the args and arg values (the boolean is required because of html form submission, which also sends hidden values)
+     * @param outputCapture
+     *            how to limit the console output of the script, <code>null</code> to send all output to the console
+     * @param timeout
+     *            execution budget in seconds, overrides the default timeout of the script if not empty
+     * @param durable
+     *            whether to execute the script detached from the agent, so it survives restarts of the agent (see {@link DurableExecution})
      */
     @DataBoundConstructor
-    public ScriptBuildStep(String buildStepId, ScriptBuildStepArgs scriptBuildStepArgs)
+    public ScriptBuildStep(String buildStepId, ScriptBuildStepArgs scriptBuildStepArgs, OutputCapture outputCapture, String timeout, boolean durable)
     {
         this.buildStepId = buildStepId;
+        this.outputCapture = outputCapture;
+        this.timeout = ProcessWatchdog.parseTimeout(timeout);
+        this.durable = durable;
         List<String> l = null;
         if (scriptBuildStepArgs != null && scriptBuildStepArgs.defineArgs
                 && scriptBuildStepArgs.buildStepArgs != null) {
@@ -99,9 +103,20 @@ public class ScriptBuildStep extends Builder {
         this.buildStepArgs = l == null ? null : l.toArray(new String[l.size()]);
     }
 
+    public ScriptBuildStep(String buildStepId, ScriptBuildStepArgs scriptBuildStepArgs, OutputCapture outputCapture, String timeout) {
+        this(buildStepId, scriptBuildStepArgs, outputCapture, timeout, false);
+    }
+
+    public ScriptBuildStep(String buildStepId, ScriptBuildStepArgs scriptBuildStepArgs) {
+        this(buildStepId, scriptBuildStepArgs, null, null);
+    }
+
     public ScriptBuildStep(String buildStepId, String[] buildStepArgs) {
         this.buildStepId = buildStepId;
         this.buildStepArgs = buildStepArgs;
+        this.outputCapture = null;
+        this.timeout = null;
+        this.durable = false;
     }
 
     public String getBuildStepId() {
@@ -112,71 +127,48 @@ public class ScriptBuildStep extends Builder {
         return buildStepArgs;
     }
 
+    public OutputCapture getOutputCapture() {
+        return outputCapture;
+    }
+
+    /**
+     * @return the timeout in seconds overriding the default of the script, <code>null</code> if the default applies
+     */
+    public Integer getTimeout() {
+        return timeout;
+    }
+
+    public boolean isDurable() {
+        return durable;
+    }
+
     /**
      * Perform the build step on the execution host.
      * <p>
-     * Generates a temporary file and copies the content of the predefined config file (by using the buildStepId) into it. It then copies this file into the workspace directory of the execution host
-     * and executes it.
+     * Makes the content of the predefined config file (by using the buildStepId) available in the script cache of the execution host (see {@link ScriptCache}) and executes it from
+     * there. The content is only transferred if the execution host does not have it yet.
      */
     @Override
     public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) {
         boolean returnValue = true;
-        Config buildStepConfig = getDescriptor().getBuildStepConfigById(buildStepId);
-        if (buildStepConfig == null) {
+        final ExecutionPlan plan = getDescriptor().getExecutionPlan(buildStepId);
+        if (plan == null) {
             listener.getLogger().println(Messages.config_does_not_exist(buildStepId));
             return false;
         }
+        final Config buildStepConfig = plan.getConfig();
         listener.getLogger().println("executing script '" + buildStepConfig.name + "'");
-        FilePath dest = null;
+        final long start = System.currentTimeMillis();
         try {
-            FilePath workingDir = build.getWorkspace();
-            EnvVars env = build.getEnvironment(listener);
-            String data = buildStepConfig.content;
-
-            /*
-             * Copying temporary file to remote execution host
-             */
-            dest = workingDir.createTextTempFile("build_step_template", ".sh", data, false);
-            log.log(Level.FINE, "Wrote script to " + Computer.currentComputer().getDisplayName() + ":" + dest.getRemote());
-
-            /*
-             * Analyze interpreter line (and use the desired interpreter)
-             */
-            ArgumentListBuilder args = new ArgumentListBuilder();
-            if (data.startsWith("#!")) {
-                String interpreterLine = data.substring(2, data.indexOf("\n"));
-                String[] interpreterElements = interpreterLine.split("\\s+");
-                // Add interpreter to arguments list
-                String interpreter = interpreterElements[0];
-                args.add(interpreter);
-                log.log(Level.FINE, "Using custom interpreter: " + interpreterLine);
-                // Add addition parameter to arguments list
-                for (int i = 1; i < interpreterElements.length; i++) {
-                    args.add(interpreterElements[i]);
-                }
-            } else {
-                // the shell executable is already configured for the Shell
-                // task, reuse it
-                final Shell.DescriptorImpl shellDescriptor = (Shell.DescriptorImpl) Jenkins.getInstance().getDescriptor(Shell.class);
-                final String interpreter = shellDescriptor.getShellOrDefault(workingDir.getChannel());
-                args.add(interpreter);
-            }
-
-            args.add(dest.getRemote());
-
-            // Add additional parameters set by user
-            if (buildStepArgs != null) {
-                for (String arg : buildStepArgs) {
-                    args.add(TokenMacro.expandAll(build, listener, arg, false, null));
-                }
-            }
-
-            /*
-             * Execute command remotely
-             */
-            int r = launcher.launch().cmds(args).envs(env).stderr(listener.getLogger()).stdout(listener.getLogger()).pwd(workingDir).join();
+            int r = new ScriptExecution(build, launcher, listener, plan).args(buildStepArgs).timeout(timeout).capture(outputCapture).durable(durable)
+                    .run();
             returnValue = (r == 0);
 
+        } catch (ProcessWatchdog.TimeoutException e) {
+            final long held = System.currentTimeMillis() - start;
+            ScriptMetrics.get(buildStepId).recordTimeout(held);
+            listener.error(e.getMessage() + ", executor freed after " + Util.getTimeSpanString(held));
+            returnValue = false;
         } catch (IOException e) {
             Util.displayIOException(e, listener);
             e.printStackTrace(listener.fatalError("Cannot create temporary script for '" + buildStepConfig.name + "'"));
@@ -184,15 +176,6 @@ public class ScriptBuildStep extends Builder {
         } catch (Exception e) {
             e.printStackTrace(listener.fatalError("Caught exception while loading script '" + buildStepConfig.name + "'"));
             returnValue = false;
-        } finally {
-            try {
-                if (dest != null && dest.exists()) {
-                    dest.delete();
-                }
-            } catch (Exception e) {
-                e.printStackTrace(listener.fatalError("Cannot remove temporary script file '" + dest.getRemote() + "'"));
-                returnValue = false;
-            }
         }
         log.log(Level.FINE, "Finished script step");
         return returnValue;
@@ -211,6 +194,8 @@ public class ScriptBuildStep extends Builder {
     public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
         final Logger logger = Logger.getLogger(ScriptBuildStep.class.getName());
 
+        private transient ScriptConfigProvider provider;
+
         /**
          * Enables this builder for all kinds of projects.
          */
@@ -233,13 +218,23 @@ public class ScriptBuildStep extends Builder {
          * @return A collection of config files of type {@link ScriptConfig}.
          */
         public Collection<Config> getAvailableBuildTemplates() {
-            List<Config> allConfigs = new ArrayList<Config>(getBuildStepConfigProvider().getAllConfigs());
-            Collections.sort(allConfigs, new Comparator<Config>() {
-                public int compare(Config o1, Config o2) {
-                    return o1.name.compareTo(o2.name);
-                }
-            });
-            return allConfigs;
+            return getBuildStepConfigProvider().getCatalog().getConfigsSortedByName();
+        }
+
+        /**
+         * Searches the config files (templates) for the script picker, see {@link ConfigCatalog#search(String, int, int)}.
+         *
+         * @param query
+         *            the text typed by the user
+         * @param offset
+         *            index of the first match to return
+         * @param limit
+         *            maximum number of matches to return
+         * @return one page of matches
+         */
+        @JavaScriptMethod
+        public JSONObject findBuildTemplates(String query, int offset, int limit) {
+            return getBuildStepConfigProvider().getCatalog().search(query, offset, limit);
         }
 
         /**
@@ -253,6 +248,17 @@ public class ScriptBuildStep extends Builder {
             return (ScriptConfig) getBuildStepConfigProvider().getConfigById(id);
         }
 
+        /**
+         * Same as {@link #getBuildStepConfigById(String)}, but without loading the content of the config. Enough for everything but executing it.
+         *
+         * @param id
+         *            The Id of a config file.
+         * @return the config, its content might be <code>null</code>
+         */
+        public ScriptConfig getBuildStepConfigMetadataById(String id) {
+            return (ScriptConfig) getBuildStepConfigProvider().getCatalog().get(id);
+        }
+
         /**
          * gets the argument description to be displayed on the screen when selecting a config in the dropdown
          *
@@ -262,7 +268,10 @@ public class ScriptBuildStep extends Builder {
          */
         @JavaScriptMethod
         public String getArgsDescription(String configId) {
-            final ScriptConfig config = getBuildStepConfigById(configId);
+            return getArgsDescription(getBuildStepConfigMetadataById(configId));
+        }
+
+        static String getArgsDescription(ScriptConfig config) {
             if (config != null) {
                 if (config.args != null && !config.args.isEmpty()) {
                     StringBuilder sb = new StringBuilder("Required arguments: ");
@@ -284,10 +293,52 @@ public class ScriptBuildStep extends Builder {
 
         @JavaScriptMethod
         public List<Arg> getArgs(String configId) {
-            final ScriptConfig config = getBuildStepConfigById(configId);
+            final ScriptConfig config = getBuildStepConfigMetadataById(configId);
             return config.args;
         }
 
+        /**
+         * gets the argument description and the argument names of several configs at once, used to initialize all build steps of a config page with a
+         * single request
+         *
+         * @param configIds
+         *            the config ids to get the arguments for
+         * @return by config id: <code>{description: '...', args: [{name: '...'}]}</code>
+         */
+        @JavaScriptMethod
+        public JSONObject getArgsInfos(String[] configIds) {
+            final JSONObject infos = new JSONObject();
+            if (configIds != null) {
+                for (String configId : configIds) {
+                    if (configId == null || configId.length() == 0 || infos.has(configId)) {
+                        continue;
+                    }
+                    final ScriptConfig config = getBuildStepConfigMetadataById(configId);
+                    final JSONArray args = new JSONArray();
+                    if (config != null && config.args != null) {
+                        for (Arg arg : config.args) {
+                            final JSONObject a = new JSONObject();
+                            a.put("name", arg.name);
+                            args.add(a);
+                        }
+                    }
+                    final JSONObject info = new JSONObject();
+                    info.put("description", getArgsDescription(config));
+                    info.put("args", args);
+                    infos.put(configId, info);
+                }
+            }
+            return infos;
+        }
+
+        /**
+         * validate the timeout override, a number of seconds
+         */
+        public FormValidation doCheckTimeout(@QueryParameter String value) {
+            final String timeout = Util.fixEmptyAndTrim(value);
+            return timeout == null ? FormValidation.ok() : FormValidation.validateNonNegativeInteger(timeout);
+        }
+
         /**
          * validate that an existing config was chosen
          *
@@ -296,7 +347,7 @@ public class ScriptBuildStep extends Builder {
          * @return
          */
         public FormValidation doCheckBuildStepId(@QueryParameter String buildStepId) {
-            final ScriptConfig config = getBuildStepConfigById(buildStepId);
+            final ScriptConfig config = getBuildStepConfigMetadataById(buildStepId);
             if (config != null) {
                 return FormValidation.ok();
             } else {
@@ -304,9 +355,23 @@ public class ScriptBuildStep extends Builder {
             }
         }
 
-        private ConfigProvider getBuildStepConfigProvider() {
-            ExtensionList<ConfigProvider> providers = ConfigProvider.all();
-            return providers.get(ScriptConfigProvider.class);
+        /**
+         * Returns the compiled execution plan for a given config file Id.
+         *
+         * @param id
+         *            The Id of a config file.
+         * @return If Id can be found the plan of the config is returned. Otherwise null.
+         */
+        public ExecutionPlan getExecutionPlan(String id) {
+            return getBuildStepConfigProvider().getExecutionPlan(id);
+        }
+
+        private ScriptConfigProvider getBuildStepConfigProvider() {
+            if (provider == null) {
+                ExtensionList<ConfigProvider> providers = ConfigProvider.all();
+                provider = providers.get(ScriptConfigProvider.class);
+            }
+            return provider;
         }
 
     }
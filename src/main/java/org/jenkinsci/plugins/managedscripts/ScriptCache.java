@@ -0,0 +1,446 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.AbortException;
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.remoting.VirtualChannel;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Content addressed cache for managed scripts on the execution host.
+ * <p>
+ * Scripts are stored in a directory below the root of the node and are named after the hash of their content. The bytes of a script are only sent over the
+ * channel if the node does not have that hash yet, larger scripts are compressed on the wire. The cache is bounded by size and evicts the least recently used
+ * scripts first.
+ * <p>
+ * Cached scripts are written read-only and hashed again on every hit, a script truncated or modified on the node is discarded and sent again.
+ */
+public final class ScriptCache {
+
+    private static final Logger LOGGER = Logger.getLogger(ScriptCache.class.getName());
+
+    /**
+     * name of the cache directory below the root directory of the node
+     */
+    public static final String CACHE_DIR = "managed-scripts-cache";
+
+    /**
+     * upper bound for the size of the cache on each node
+     */
+    public static long MAX_SIZE = Long.getLong(ScriptCache.class.getName() + ".maxSize", 64L * 1024 * 1024);
+
+    /**
+     * scripts bigger than this are compressed before they are sent to the node
+     */
+    public static int COMPRESS_THRESHOLD = Integer.getInteger(ScriptCache.class.getName() + ".compressThreshold", 4096);
+
+    /**
+     * scripts used within this period are never evicted, they might be just about to be executed
+     */
+    private static final long EVICTION_GRACE_PERIOD = 60 * 1000;
+
+    /**
+     * the hashes we believe a channel already has, used to avoid sending the content
+     */
+    private static final Map<VirtualChannel, Set<String>> KNOWN = new WeakHashMap<VirtualChannel, Set<String>>();
+
+    private ScriptCache() {
+    }
+
+    /**
+     * Makes sure the given script content is available on the node the build runs on.
+     *
+     * @param build
+     *            the build the script is required for
+     * @param content
+     *            the content of the script
+     * @param extension
+     *            the file extension of the script (e.g. '.sh')
+     * @param sample
+     *            gets the number of bytes sent to the node, may be <code>null</code>
+     * @return the location of the script on the node, the file must not be modified or deleted by the caller
+     */
+    public static FilePath stage(AbstractBuild<?, ?> build, String content, String extension, ScriptMetrics.Sample sample) throws IOException,
+            InterruptedException {
+        final byte[] bytes = content.getBytes(getCharset(build).name());
+        return stage(getCacheDir(build), bytes, hash(bytes), extension, sample);
+    }
+
+    /**
+     * Returns the cache directory on the node the build runs on.
+     */
+    public static FilePath getCacheDir(AbstractBuild<?, ?> build) throws AbortException {
+        final Node node = build.getBuiltOn();
+        if (node == null) {
+            throw new AbortException("Cannot stage script, node '" + build.getBuiltOnStr() + "' is offline");
+        }
+        return getCacheDir(node);
+    }
+
+    /**
+     * Returns the cache directory on the given node.
+     */
+    public static FilePath getCacheDir(Node node) throws AbortException {
+        final FilePath root = node.getRootPath();
+        if (root == null) {
+            throw new AbortException("Cannot stage script, node '" + node.getDisplayName() + "' is offline");
+        }
+        return root.child(CACHE_DIR);
+    }
+
+    /**
+     * Returns the charset scripts have to be encoded with for the node the build runs on.
+     */
+    public static Charset getCharset(AbstractBuild<?, ?> build) {
+        return getCharset(build.getBuiltOn());
+    }
+
+    /**
+     * Returns the charset scripts have to be encoded with for the given node.
+     */
+    public static Charset getCharset(Node node) {
+        final Computer computer = node == null ? null : node.toComputer();
+        return computer == null ? Charset.defaultCharset() : computer.getDefaultCharset();
+    }
+
+    /**
+     * Makes sure the given bytes are available in the cache directory.
+     *
+     * @param cacheDir
+     *            the cache directory on the node
+     * @param bytes
+     *            the content of the script
+     * @param hash
+     *            the hash of the content (see {@link #hash(byte[])})
+     * @param extension
+     *            the file extension of the script
+     * @param sample
+     *            gets the number of bytes sent to the node, may be <code>null</code>
+     * @return the location of the script on the node
+     */
+    public static FilePath stage(FilePath cacheDir, byte[] bytes, String hash, String extension, ScriptMetrics.Sample sample) throws IOException,
+            InterruptedException {
+        final VirtualChannel channel = cacheDir.getChannel();
+        Staging staging = prepare(channel, bytes, hash, extension, false);
+        String path = cacheDir.act(new Stage(staging));
+        if (path == null) {
+            staging = prepare(channel, bytes, hash, extension, true);
+            path = cacheDir.act(new Stage(staging));
+        } else if (staging.payload == null) {
+            LOGGER.log(Level.FINE, "Script " + staging.name + " already cached on the node");
+        }
+        staged(channel, staging, sample);
+        return new FilePath(channel, path);
+    }
+
+    /**
+     * Prepares staging the given bytes on the node behind the given channel, for callers staging the script as part of a bigger operation on the node.
+     * Unless forced, the content is left out if the node is believed to have it already. {@link Staging#stage(File)} has to be repeated with the content
+     * if it returns <code>null</code>, {@link #staged(VirtualChannel, Staging, ScriptMetrics.Sample)} has to be called once it succeeded.
+     *
+     * @param withContent
+     *            always send the content
+     */
+    static Staging prepare(VirtualChannel channel, byte[] bytes, String hash, String extension, boolean withContent) throws IOException {
+        final String name = hash + extension;
+        if (!withContent && isKnown(channel, name)) {
+            return new Staging(name, null, false, MAX_SIZE);
+        }
+        final boolean compress = bytes.length > COMPRESS_THRESHOLD;
+        return new Staging(name, compress ? gzip(bytes) : bytes, compress, MAX_SIZE);
+    }
+
+    /**
+     * Records that the given staging succeeded.
+     *
+     * @param sample
+     *            gets the number of bytes sent to the node, may be <code>null</code>
+     */
+    static void staged(VirtualChannel channel, Staging staging, ScriptMetrics.Sample sample) {
+        if (staging.payload != null) {
+            setKnown(channel, staging.name);
+            if (sample != null) {
+                sample.addBytesTransferred(staging.payload.length);
+            }
+        }
+    }
+
+    /**
+     * Calculates the hash used to identify a script in the cache.
+     */
+    public static String hash(byte[] bytes) {
+        try {
+            return Util.toHexString(MessageDigest.getInstance("SHA-1").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error(e); // SHA-1 is guaranteed to be present
+        }
+    }
+
+    private static boolean isKnown(VirtualChannel channel, String name) {
+        synchronized (KNOWN) {
+            final Set<String> names = KNOWN.get(channel);
+            return names != null && names.contains(name);
+        }
+    }
+
+    private static void setKnown(VirtualChannel channel, String name) {
+        synchronized (KNOWN) {
+            Set<String> names = KNOWN.get(channel);
+            if (names == null) {
+                names = new HashSet<String>();
+                KNOWN.put(channel, names);
+            }
+            names.add(name);
+        }
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream(bytes.length / 2);
+        final OutputStream out = new GZIPOutputStream(bos);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        return bos.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] bytes) throws IOException {
+        final InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes));
+        try {
+            final ByteArrayOutputStream bos = new ByteArrayOutputStream(bytes.length * 4);
+            Util.copyStream(in, bos);
+            return bos.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * A script to stage on a node, possibly without its content, see {@link ScriptCache#prepare(VirtualChannel, byte[], String, String, boolean)}.
+     */
+    static final class Staging implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+        private final byte[] payload;
+        private final boolean compressed;
+        private final long maxSize;
+
+        Staging(String name, byte[] payload, boolean compressed, long maxSize) {
+            this.name = name;
+            this.payload = payload;
+            this.compressed = compressed;
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * Executed on the node: returns the cached script, stores the payload if the script is not cached yet.
+         *
+         * @param dir
+         *            the cache directory
+         * @return the script or <code>null</code> if the script is not cached and no payload was sent
+         */
+        File stage(File dir) throws IOException {
+            return Index.get(dir).stage(name, payload == null ? null : compressed ? gunzip(payload) : payload, maxSize);
+        }
+    }
+
+    /**
+     * Executed on the node: returns the path of the cached script, see {@link Staging#stage(File)}.
+     */
+    private static final class Stage implements FileCallable<String> {
+        private static final long serialVersionUID = 1L;
+
+        private final Staging staging;
+
+        Stage(Staging staging) {
+            this.staging = staging;
+        }
+
+        public String invoke(File dir, VirtualChannel channel) throws IOException {
+            final File file = staging.stage(dir);
+            return file == null ? null : file.getAbsolutePath();
+        }
+    }
+
+    /**
+     * LRU bookkeeping of a cache directory, lives in the JVM of the node.
+     */
+    private static final class Index {
+        private static final Map<File, Index> INDEXES = new HashMap<File, Index>();
+
+        private final File dir;
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        private long size;
+
+        private static synchronized Index get(File dir) throws IOException {
+            final File key = dir.getAbsoluteFile();
+            Index index = INDEXES.get(key);
+            if (index == null) {
+                index = new Index(key);
+                INDEXES.put(key, index);
+            }
+            return index;
+        }
+
+        private Index(File dir) throws IOException {
+            this.dir = dir;
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Failed to create script cache directory " + dir);
+            }
+            // restore the LRU order of a previous session from the file timestamps
+            final File[] files = dir.listFiles();
+            if (files != null) {
+                Arrays.sort(files, new Comparator<File>() {
+                    public int compare(File o1, File o2) {
+                        final long l1 = o1.lastModified(), l2 = o2.lastModified();
+                        return l1 < l2 ? -1 : l1 == l2 ? 0 : 1;
+                    }
+                });
+                for (File file : files) {
+                    if (file.getName().startsWith(".")) {
+                        file.delete(); // left over from an interrupted write
+                    } else if (file.isFile()) {
+                        entries.put(file.getName(), new Entry(file.length(), file.lastModified()));
+                        size += file.length();
+                    }
+                }
+            }
+        }
+
+        synchronized File stage(String name, byte[] content, long maxSize) throws IOException {
+            final File file = new File(dir, name);
+            final Entry entry = entries.get(name);
+            final long now = System.currentTimeMillis();
+            if (entry != null) {
+                if (file.isFile() && isIntact(file, name, entry)) {
+                    entry.lastUsed = now;
+                    file.setLastModified(now);
+                    return file;
+                }
+                // somebody removed or modified it behind our back
+                if (file.exists()) {
+                    LOGGER.log(Level.WARNING, "Discarding " + file + ", its content does not match its hash");
+                    delete(file);
+                }
+                entries.remove(name);
+                size -= entry.size;
+            }
+            if (content == null) {
+                return null;
+            }
+
+            final File tmp = File.createTempFile(".stage", null, dir);
+            try {
+                final OutputStream out = new FileOutputStream(tmp);
+                try {
+                    out.write(content);
+                } finally {
+                    out.close();
+                }
+                if (!tmp.renameTo(file) && !(delete(file) && tmp.renameTo(file))) {
+                    throw new IOException("Failed to move " + tmp + " to " + file);
+                }
+            } finally {
+                tmp.delete();
+            }
+            file.setReadOnly();
+            entries.put(name, new Entry(content.length, now));
+            size += content.length;
+            evict(maxSize, now);
+            return file;
+        }
+
+        private void evict(long maxSize, long now) {
+            final List<String> evicted = new ArrayList<String>();
+            for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext() && size > maxSize;) {
+                final Map.Entry<String, Entry> e = it.next();
+                if (now - e.getValue().lastUsed < EVICTION_GRACE_PERIOD) {
+                    break; // all remaining entries are even younger
+                }
+                final File file = new File(dir, e.getKey());
+                if (delete(file) || !file.exists()) {
+                    it.remove();
+                    size -= e.getValue().size;
+                    evicted.add(e.getKey());
+                }
+            }
+            if (!evicted.isEmpty()) {
+                LOGGER.log(Level.FINE, "Evicted " + evicted + " from " + dir);
+            }
+        }
+
+        /**
+         * @return whether the file still has the size and the hash (the part of the name before the extension) it was cached with
+         */
+        private static boolean isIntact(File file, String name, Entry entry) throws IOException {
+            if (file.length() != entry.size) {
+                return false;
+            }
+            final int dot = name.indexOf('.');
+            final String expected = dot < 0 ? name : name.substring(0, dot);
+            final InputStream in = new FileInputStream(file);
+            try {
+                final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+                final byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) >= 0) {
+                    digest.update(buffer, 0, n);
+                }
+                return Util.toHexString(digest.digest()).equals(expected);
+            } catch (NoSuchAlgorithmException e) {
+                throw new Error(e); // SHA-1 is guaranteed to be present
+            } finally {
+                in.close();
+            }
+        }
+
+        // read-only files can't be deleted on Windows
+        private static boolean delete(File file) {
+            file.setWritable(true);
+            return file.delete();
+        }
+    }
+
+    private static final class Entry {
+        private final long size;
+        private long lastUsed;
+
+        Entry(long size, long lastUsed) {
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
@@ -6,11 +6,13 @@ package org.jenkinsci.plugins.managedscripts;
 import hudson.Extension;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import jenkins.model.Jenkins;
 
-import org.jenkinsci.lib.configprovider.AbstractConfigProviderImpl;
 import org.jenkinsci.lib.configprovider.model.Config;
 import org.jenkinsci.lib.configprovider.model.ContentType;
 import org.kohsuke.stapler.DataBoundConstructor;
@@ -23,9 +25,92 @@ public class ScriptConfig extends Config {
 
     public final List<Arg> args;
 
-    @DataBoundConstructor
+    /**
+     * default execution budget of the script in seconds, <code>0</code> for none
+     */
+    public final int timeout;
+
+    /**
+     * ids of the libraries ({@link LibraryConfig}) this script includes, separated by comma or whitespace
+     */
+    public final String includes;
+
+    /**
+     * pass the script to the interpreter on stdin (e.g. <code>bash -s</code>, <code>python -</code>) instead of placing it in a file on the execution host
+     */
+    public final boolean stdin;
+
+    /**
+     * whether the results of the script may be reused for the same inputs, see {@link BuildCache}
+     */
+    public final boolean cacheable;
+
+    /**
+     * files (Ant globs relative to the workspace, separated by comma) the results of a cacheable script depend on
+     */
+    public final String cacheInputs;
+
+    /**
+     * files (Ant globs relative to the workspace, separated by comma) a cacheable script produces
+     */
+    public final String cacheOutputs;
+
+    /**
+     * names of the environment variables the results of a cacheable script depend on, separated by comma or whitespace
+     */
+    public final String cacheEnv;
+
+    /**
+     * execute the script in a warm interpreter process kept by the execution host, see {@link WorkerPool}
+     */
+    public final boolean worker;
+
+    /**
+     * maximum number of executions of the script at the same time on all nodes, <code>0</code> for no limit, see {@link ScriptThrottle}
+     */
+    public final int maxConcurrent;
+
+    /**
+     * whether waiting executions get the permits in the order they asked for them
+     */
+    public final boolean fairQueue;
+
     public ScriptConfig(String id, String name, String comment, String content, List<Arg> args) {
+        this(id, name, comment, content, args, 0, null);
+    }
+
+    public ScriptConfig(String id, String name, String comment, String content, List<Arg> args, int timeout, String includes) {
+        this(id, name, comment, content, args, timeout, includes, false);
+    }
+
+    public ScriptConfig(String id, String name, String comment, String content, List<Arg> args, int timeout, String includes, boolean stdin) {
+        this(id, name, comment, content, args, timeout, includes, stdin, false, null, null, null);
+    }
+
+    public ScriptConfig(String id, String name, String comment, String content, List<Arg> args, int timeout, String includes, boolean stdin,
+            boolean cacheable, String cacheInputs, String cacheOutputs, String cacheEnv) {
+        this(id, name, comment, content, args, timeout, includes, stdin, cacheable, cacheInputs, cacheOutputs, cacheEnv, false);
+    }
+
+    public ScriptConfig(String id, String name, String comment, String content, List<Arg> args, int timeout, String includes, boolean stdin,
+            boolean cacheable, String cacheInputs, String cacheOutputs, String cacheEnv, boolean worker) {
+        this(id, name, comment, content, args, timeout, includes, stdin, cacheable, cacheInputs, cacheOutputs, cacheEnv, worker, 0, false);
+    }
+
+    @DataBoundConstructor
+    public ScriptConfig(String id, String name, String comment, String content, List<Arg> args, int timeout, String includes, boolean stdin,
+            boolean cacheable, String cacheInputs, String cacheOutputs, String cacheEnv, boolean worker, int maxConcurrent, boolean fairQueue) {
         super(id, name, comment, content);
+        this.timeout = Math.max(0, timeout);
+        this.includes = includes;
+        this.stdin = stdin;
+        this.cacheable = cacheable;
+        this.cacheInputs = cacheInputs;
+        this.cacheOutputs = cacheOutputs;
+        this.cacheEnv = cacheEnv;
+        this.worker = worker;
+        this.maxConcurrent = Math.max(0, maxConcurrent);
+        this.fairQueue = fairQueue;
 
         if (args != null) {
             List<Arg> filteredArgs = new ArrayList<ScriptConfig.Arg>();
@@ -40,6 +125,13 @@ public class ScriptConfig extends Config {
         }
     }
 
+    /**
+     * @return the ids of the libraries this script includes
+     */
+    public List<String> getIncludeIds() {
+        return LibraryConfig.parseIncludes(includes);
+    }
+
     public static class Arg {
         public final String name;
 
@@ -49,13 +141,89 @@ public class ScriptConfig extends Config {
         }
     }
 
+    /**
+     * @return the build steps using this script, see {@link ScriptUsageIndex}
+     */
+    public List<ScriptUsageIndex.Usage> getUsages() {
+        final ScriptUsageIndex index = ScriptUsageIndex.get();
+        return index == null ? Collections.<ScriptUsageIndex.Usage> emptyList() : index.getUsages(id);
+    }
+
     @Extension(ordinal = 70)
-    public static class ScriptConfigProvider extends AbstractConfigProviderImpl {
+    public static class ScriptConfigProvider extends AbstractScriptConfigProvider {
+
+        /**
+         * the compiled plans of the most recently used configs, by config id, bounded by {@link ExecutionPlan#MAX_CACHED}
+         */
+        private transient final Map<String, ExecutionPlan> plans = new LinkedHashMap<String, ExecutionPlan>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ExecutionPlan> eldest) {
+                return size() > ExecutionPlan.MAX_CACHED;
+            }
+        };
 
         public ScriptConfigProvider() {
             load();
         }
 
+        /**
+         * Returns the compiled execution plan for the given config, the config is only compiled on first use after it was saved.
+         *
+         * @param configId
+         *            the id of the config
+         * @return the plan or <code>null</code> if there is no such config
+         */
+        public ExecutionPlan getExecutionPlan(String configId) {
+            final ExecutionPlan plan;
+            synchronized (plans) {
+                plan = plans.get(configId);
+            }
+            return plan != null ? plan : compile(configId);
+        }
+
+        // synchronized with save/remove, so the plan of a previous version never ends up in the map
+        private synchronized ExecutionPlan compile(String configId) {
+            synchronized (plans) {
+                final ExecutionPlan plan = plans.get(configId);
+                if (plan != null) {
+                    return plan;
+                }
+            }
+            final ScriptConfig config = (ScriptConfig) getConfigById(configId);
+            if (config == null) {
+                return null;
+            }
+            final ExecutionPlan plan = ExecutionPlan.compile(config);
+            synchronized (plans) {
+                plans.put(configId, plan);
+            }
+            return plan;
+        }
+
+        @Override
+        public synchronized void load() {
+            super.load();
+            synchronized (plans) {
+                plans.clear();
+            }
+        }
+
+        @Override
+        protected void onChange(String configId) {
+            synchronized (plans) {
+                plans.remove(configId);
+            }
+        }
+
+        @Override
+        protected Config withContent(Config config, String content) {
+            final ScriptConfig c = (ScriptConfig) config;
+            return new ScriptConfig(c.id, c.name, c.comment, content, c.args, c.timeout, c.includes, c.stdin, c.cacheable, c.cacheInputs, c.cacheOutputs,
+                    c.cacheEnv, c.worker, c.maxConcurrent, c.fairQueue);
+        }
+
         @Override
         public ContentType getContentType() {
             return ContentType.DefinedType.HTML;
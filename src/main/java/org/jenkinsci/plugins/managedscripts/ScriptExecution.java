@@ -0,0 +1,430 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Launcher.ProcStarter;
+import hudson.Proc;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.EnvironmentVariablesNodeProperty;
+import hudson.slaves.NodeProperty;
+import hudson.tasks.Shell;
+import hudson.util.ArgumentListBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
+
+/**
+ * One execution of a compiled managed script ({@link ExecutionPlan}) on the execution host of a build.
+ * <p>
+ * Shared by all build steps executing {@link ScriptConfig}s, the caller is responsible for reporting errors. Unless the launcher of the build is decorated,
+ * everything after the libraries happens in a single call to the execution host ({@link AgentExecution}). Cacheable scripts are looked up in the
+ * {@link BuildCache} first, durable executions are detached from the agent ({@link DurableExecution}).
+ */
+final class ScriptExecution {
+
+    private static final Logger LOGGER = Logger.getLogger(ScriptExecution.class.getName());
+
+    private final AbstractBuild<?, ?> build;
+    private final Launcher launcher;
+    private final TaskListener listener;
+    private final ExecutionPlan plan;
+
+    private MacroArgs args = MacroArgs.NONE;
+    private Map<String, String> macros;
+    private int timeoutSeconds;
+    private OutputCapture capture;
+    private boolean durable;
+    private Node node;
+    private FilePath workspace;
+    private final ScriptMetrics.Sample sample = new ScriptMetrics.Sample();
+
+    ScriptExecution(AbstractBuild<?, ?> build, Launcher launcher, TaskListener listener, ExecutionPlan plan) {
+        this.build = build;
+        this.launcher = launcher;
+        this.listener = listener;
+        this.plan = plan;
+        this.timeoutSeconds = plan.getConfig().timeout;
+    }
+
+    /**
+     * @param args
+     *            the arguments to pass to the script, macros are expanded (classified once by the plan, see {@link ExecutionPlan#getArgs(String[])})
+     */
+    ScriptExecution args(String[] args) {
+        this.args = plan.getArgs(args);
+        return this;
+    }
+
+    /**
+     * @param macros
+     *            the results of the macros already evaluated by the build step (for steps executing several scripts), gets the newly evaluated ones,
+     *            has to be thread safe if shared by concurrent executions
+     */
+    ScriptExecution macros(Map<String, String> macros) {
+        this.macros = macros;
+        return this;
+    }
+
+    /**
+     * @param timeoutSeconds
+     *            the budget of the execution, overrides the default of the script if not <code>null</code>
+     */
+    ScriptExecution timeout(Integer timeoutSeconds) {
+        if (timeoutSeconds != null) {
+            this.timeoutSeconds = timeoutSeconds;
+        }
+        return this;
+    }
+
+    /**
+     * @param capture
+     *            how to limit the console output, <code>null</code> to send all output to the console
+     */
+    ScriptExecution capture(OutputCapture capture) {
+        this.capture = capture;
+        return this;
+    }
+
+    /**
+     * @param durable
+     *            whether to execute the script detached from the agent, see {@link DurableExecution}; ignored with a warning on other execution hosts
+     *            than Unix, with a decorated launcher, an output capture or a worker
+     */
+    ScriptExecution durable(boolean durable) {
+        this.durable = durable;
+        return this;
+    }
+
+    /**
+     * Executes the script on another node than the one of the build, the launcher has to be one of that node. The script gets the environment of that
+     * node (e.g. its PATH, also used to look up the interpreter) with the variables of the build.
+     *
+     * @param node
+     *            the node to execute the script on
+     * @param workspace
+     *            the working directory on that node
+     */
+    ScriptExecution on(Node node, FilePath workspace) {
+        this.node = node;
+        this.workspace = workspace;
+        return this;
+    }
+
+    /**
+     * Waits for a permit of the {@link ScriptThrottle} if the script is throttled, then stages the script on the execution host and executes it. The
+     * execution is recorded in the {@link ScriptMetrics} of the script, a summary of the
+     * phase timings is printed to the build log.
+     *
+     * @return the exit code of the script
+     * @throws ProcessWatchdog.TimeoutException
+     *             if the script exceeded its budget
+     */
+    int run() throws IOException, InterruptedException, MacroEvaluationException {
+        final ScriptConfig config = plan.getConfig();
+        final ScriptThrottle.Permit permit = ScriptThrottle.acquire(config.id, config.name, config.maxConcurrent, config.fairQueue, listener);
+        sample.skip();
+        int r = -1;
+        try {
+            r = doRun();
+            return r;
+        } finally {
+            permit.release();
+            sample.lap(ScriptMetrics.Phase.CLEANUP);
+            ScriptMetrics.get(config.id).record(sample, r);
+            listener.getLogger().println("managed script '" + config.name + "' " + sample);
+        }
+    }
+
+    private int doRun() throws IOException, InterruptedException, MacroEvaluationException {
+        final ScriptConfig config = plan.getConfig();
+        final FilePath workingDir = node != null ? workspace : build.getWorkspace();
+        final EnvVars env = node != null ? getNodeEnvironment() : build.getEnvironment(listener);
+        final Charset charset = node != null ? ScriptCache.getCharset(node) : ScriptCache.getCharset(build);
+        // fail before anything gets staged if the interpreter is missing, a decorated launcher may run the script elsewhere (e.g. in a container)
+        if (!isDecorated()) {
+            InterpreterCapabilities.check(getComputer(), plan.getInterpreter(), env.get("PATH"));
+        }
+        final ExecutionPlan.Encoded script = plan.encode(charset);
+        final String[] expandedArgs = args.expand(build, listener, macros);
+
+        final List<String> includes = config.getIncludeIds();
+        final List<LibraryConfig> libraries = includes.isEmpty() ? Collections.<LibraryConfig> emptyList() : LibraryResolver.get().resolve(includes);
+
+        /*
+         * Reuse the results of a previous execution with the same inputs
+         */
+        String cacheKey = null;
+        if (config.cacheable) {
+            cacheKey = BuildCache.key(build.getParent().getFullName(), config, script, libraries, charset, plan.getInterpreter(), expandedArgs, env, workingDir);
+            final Integer cached = BuildCache.get().restore(cacheKey, workingDir);
+            sample.lap(ScriptMetrics.Phase.STAGE);
+            if (cached != null) {
+                ScriptMetrics.get(config.id).recordCacheHit();
+                listener.getLogger().println("managed script '" + config.name + "' is up to date (build cache " + cacheKey + "), restored its outputs");
+                return cached;
+            }
+            ScriptMetrics.get(config.id).recordCacheMiss();
+        }
+
+        /*
+         * Place the included libraries in the workspace (once per build)
+         */
+        if (!libraries.isEmpty()) {
+            final FilePath libs = LibraryStaging.stage(build, workingDir, charset, libraries, listener);
+            env.put(LibraryStaging.ENV_VAR, libs.getRemote());
+        }
+
+        final String notDurable = durable ? getNotDurableReason() : null;
+        if (notDurable != null) {
+            listener.getLogger().println("WARNING: managed script '" + config.name + "' is not executed durably, " + notDurable);
+        }
+        final int r;
+        if (durable && notDurable == null) {
+            r = runDurable(workingDir, env, script, expandedArgs);
+        } else if (!isDecorated()) {
+            r = runOnAgent(workingDir, env, script, expandedArgs);
+        } else {
+            // a decorated launcher (e.g. by a build wrapper) must be used to start the process
+            if (plan.getWorkerDriver() != null) {
+                listener.getLogger().println("managed script '" + config.name + "' is not executed by a worker, the launcher of the build is decorated");
+            }
+            r = runWithLauncher(workingDir, env, script, expandedArgs);
+        }
+        if (cacheKey != null && r == 0) {
+            BuildCache.get().store(cacheKey, workingDir, config.cacheOutputs, r);
+        }
+        return r;
+    }
+
+    /**
+     * Stages, launches and waits for the script in a single call to the execution host, see {@link AgentExecution}.
+     */
+    private int runOnAgent(FilePath workingDir, EnvVars env, ExecutionPlan.Encoded script, String[] expandedArgs) throws IOException,
+            InterruptedException {
+        final WorkerPool.Spec worker = plan.getWorkerDriver() != null ? WorkerPool.Spec.of(plan.getWorkerDriver()) : null;
+        // a worker needs the script in a file
+        final boolean stdin = plan.getConfig().stdin && worker == null;
+        final List<String> interpreter = plan.getInterpreter();
+        // the shell executable is already configured for the Shell task, reuse it (the default is resolved on the execution host)
+        final String shell = interpreter != null ? null : ((Shell.DescriptorImpl) Jenkins.getInstance().getDescriptor(Shell.class)).getShell();
+        String outputFile = null;
+        if (capture != null) {
+            final FilePath file = capture.getOutputFile(build, workingDir, plan.getConfig().name);
+            listener.getLogger().println("full output of '" + plan.getConfig().name + "' is written to " + file.getRemote());
+            outputFile = file.getRemote();
+        }
+        sample.lap(ScriptMetrics.Phase.INTERPRETER);
+
+        final VirtualChannel channel = workingDir.getChannel();
+        final String cacheDir = getCacheDir().getRemote();
+        ScriptCache.Staging staging = stdin ? null : ScriptCache.prepare(channel, script.bytes, script.hash, ".sh", false);
+        AgentExecution.Result result = workingDir.act(new AgentExecution(cacheDir, staging, stdin ? script.bytes : null, interpreter, shell, worker,
+                plan.getStdinArgument(), expandedArgs, env, timeoutSeconds, capture, outputFile, listener));
+        if (result == null) {
+            // no longer cached on the execution host, send it again with its content
+            staging = ScriptCache.prepare(channel, script.bytes, script.hash, ".sh", true);
+            result = workingDir.act(new AgentExecution(cacheDir, staging, null, interpreter, shell, worker, plan.getStdinArgument(), expandedArgs,
+                    env, timeoutSeconds, capture, outputFile, listener));
+        }
+        if (staging != null) {
+            ScriptCache.staged(channel, staging, sample);
+        } else {
+            sample.addBytesTransferred(script.bytes.length);
+        }
+        sample.merge(result.phaseMillis);
+        return result.exitCode;
+    }
+
+    /**
+     * Stages the script and starts it detached from the agent, then follows its output until it finished, see {@link DurableExecution}.
+     */
+    private int runDurable(FilePath workingDir, EnvVars env, ExecutionPlan.Encoded script, String[] expandedArgs) throws IOException,
+            InterruptedException {
+        final FilePath dest = ScriptCache.stage(getCacheDir(), script.bytes, script.hash, ".sh", sample);
+        sample.lap(ScriptMetrics.Phase.STAGE);
+        final List<String> interpreter = plan.getInterpreter();
+        final List<String> cmds = new ArrayList<String>();
+        if (interpreter != null) {
+            cmds.addAll(interpreter);
+        } else {
+            cmds.add(InterpreterCapabilities.getDefaultShell(getComputer(), workingDir.getChannel()));
+        }
+        cmds.add(dest.getRemote());
+        for (String arg : expandedArgs) {
+            cmds.add(arg);
+        }
+        sample.lap(ScriptMetrics.Phase.INTERPRETER);
+        final Node n = node != null ? node : build.getBuiltOn();
+        if (n == null) {
+            throw new AbortException("Cannot execute script, node '" + build.getBuiltOnStr() + "' is offline");
+        }
+        final String key = DurableExecution.key(build, plan.getConfig().id, expandedArgs);
+        return new DurableExecution(build, n, listener, key, timeoutSeconds, sample).run(cmds, env, workingDir);
+    }
+
+    /**
+     * Stages the script and launches it with the launcher of the build, takes several calls to the execution host.
+     */
+    private int runWithLauncher(FilePath workingDir, EnvVars env, ExecutionPlan.Encoded script, String[] expandedArgs) throws IOException,
+            InterruptedException {
+        /*
+         * Make the script available on the remote execution host (only transferred if not cached there yet)
+         */
+        final boolean stdin = plan.getConfig().stdin;
+        FilePath dest = null;
+        if (stdin) {
+            // sent on each execution
+            sample.addBytesTransferred(script.bytes.length);
+        } else {
+            dest = ScriptCache.stage(getCacheDir(), script.bytes, script.hash, ".sh", sample);
+            LOGGER.log(Level.FINE, "Using script " + Computer.currentComputer().getDisplayName() + ":" + dest.getRemote());
+        }
+        sample.lap(ScriptMetrics.Phase.STAGE);
+
+        /*
+         * Use the interpreter of the plan, or the default shell if the script does not define one
+         */
+        String defaultInterpreter = null;
+        if (plan.getInterpreter() == null) {
+            // the shell executable is already configured for the Shell
+            // task, reuse it (resolved once per node)
+            defaultInterpreter = InterpreterCapabilities.getDefaultShell(getComputer(), workingDir.getChannel());
+        }
+        ArgumentListBuilder cmds = commandLine(plan, defaultInterpreter, stdin ? null : dest.getRemote());
+
+        // Add additional parameters set by user
+        cmds.add(expandedArgs);
+        sample.lap(ScriptMetrics.Phase.INTERPRETER);
+
+        /*
+         * Execute command remotely, the output passes the master anyway, so it is captured here
+         */
+        OutputStream out = listener.getLogger();
+        if (capture != null) {
+            final File file = capture.getBuildOutputFile(build, plan.getConfig().name);
+            listener.getLogger().println("full output of '" + plan.getConfig().name + "' is written to " + file);
+            out = capture.open(file, listener.getLogger());
+        }
+        try {
+            final ProcStarter starter = launcher.launch().cmds(cmds).envs(env).stderr(out).stdout(out).pwd(workingDir);
+            if (stdin) {
+                starter.stdin(new ByteArrayInputStream(script.bytes));
+            }
+            Proc proc = starter.start();
+            sample.lap(ScriptMetrics.Phase.SPAWN);
+            final int r = ProcessWatchdog.join(proc, timeoutSeconds);
+            sample.lap(ScriptMetrics.Phase.RUN);
+            return r;
+        } finally {
+            if (capture != null) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * @return why a durable execution is not possible, <code>null</code> if it is
+     */
+    private String getNotDurableReason() {
+        if (!launcher.isUnix()) {
+            return "the execution host is not a Unix";
+        }
+        if (isDecorated()) {
+            return "the launcher of the build is decorated";
+        }
+        if (capture != null) {
+            return "its output is captured";
+        }
+        if (plan.getWorkerDriver() != null) {
+            return "it is executed by a worker";
+        }
+        return null;
+    }
+
+    /**
+     * @return whether the launcher is decorated (e.g. by a build wrapper) and has to be used to start the process
+     */
+    private boolean isDecorated() {
+        return !(launcher instanceof Launcher.LocalLauncher || launcher instanceof Launcher.RemoteLauncher);
+    }
+
+    private Computer getComputer() {
+        final Node n = node != null ? node : build.getBuiltOn();
+        return n == null ? null : n.toComputer();
+    }
+
+    /**
+     * The environment of an execution on another node: the environment of that node (not of the node of the build) with the node properties, the
+     * characteristic variables of the build and its build variables.
+     */
+    private EnvVars getNodeEnvironment() throws IOException, InterruptedException {
+        final String nodeName = node.getNodeName().length() == 0 ? "master" : node.getNodeName();
+        final Computer computer = node.toComputer();
+        if (computer == null || computer.getChannel() == null) {
+            throw new AbortException(nodeName + " is offline");
+        }
+        final EnvVars env = computer.getEnvironment().overrideAll(build.getCharacteristicEnvVars());
+        for (NodeProperty<?> property : Jenkins.getInstance().getGlobalNodeProperties()) {
+            if (property instanceof EnvironmentVariablesNodeProperty) {
+                env.overrideAll(((EnvironmentVariablesNodeProperty) property).getEnvVars());
+            }
+        }
+        for (NodeProperty<?> property : node.getNodeProperties()) {
+            if (property instanceof EnvironmentVariablesNodeProperty) {
+                env.overrideAll(((EnvironmentVariablesNodeProperty) property).getEnvVars());
+            }
+        }
+        env.putAll(build.getBuildVariables());
+        env.put("NODE_NAME", nodeName);
+        env.put("NODE_LABELS", Util.join(node.getAssignedLabels(), " "));
+        env.put("WORKSPACE", workspace.getRemote());
+        return env;
+    }
+
+    private FilePath getCacheDir() throws AbortException {
+        return node != null ? ScriptCache.getCacheDir(node) : ScriptCache.getCacheDir(build);
+    }
+
+    /**
+     * Builds the command line launching the script, without the arguments of the build step.
+     *
+     * @param plan
+     *            the plan of the script
+     * @param defaultInterpreter
+     *            the interpreter to use if the plan does not define one
+     * @param script
+     *            the location of the script on the execution host, <code>null</code> if the script is passed on stdin
+     */
+    static ArgumentListBuilder commandLine(ExecutionPlan plan, String defaultInterpreter, String script) {
+        final ArgumentListBuilder cmds = new ArgumentListBuilder();
+        final List<String> interpreter = plan.getInterpreter();
+        if (interpreter != null) {
+            for (String element : interpreter) {
+                cmds.add(element);
+            }
+        } else {
+            cmds.add(defaultInterpreter);
+        }
+        return cmds.add(script != null ? script : plan.getStdinArgument());
+    }
+}
@@ -0,0 +1,350 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Execution metrics of the managed scripts, by config id. Only kept in memory.
+ * <p>
+ * Each execution is measured in phases (see {@link Phase}), the durations are aggregated in a histogram per phase. Additionally the exit codes, the bytes
+ * transferred to the execution hosts and the timeouts are counted.
+ */
+public final class ScriptMetrics {
+
+    /**
+     * The phases of an execution.
+     */
+    public enum Phase {
+        /** making the script (and its libraries) available on the execution host */
+        STAGE,
+        /** resolving the interpreter and expanding the arguments */
+        INTERPRETER,
+        /** starting the process */
+        SPAWN,
+        /** waiting for the process to finish */
+        RUN,
+        /** everything after the process finished */
+        CLEANUP;
+
+        public String getLabel() {
+            return name().toLowerCase();
+        }
+    }
+
+    /**
+     * upper bounds of the histogram buckets in milliseconds, the last bucket is unbounded
+     */
+    public static final long[] BUCKETS = { 1, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 300000, 900000, 3600000 };
+
+    private static final ConcurrentMap<String, ScriptMetrics> ALL = new ConcurrentHashMap<String, ScriptMetrics>();
+
+    private final String configId;
+    private final Histogram[] phases = new Histogram[Phase.values().length];
+    private final ConcurrentMap<Integer, AtomicLong> exitCodes = new ConcurrentHashMap<Integer, AtomicLong>();
+    private final AtomicLong executions = new AtomicLong();
+    private final AtomicLong bytesTransferred = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong executorMillisFreed = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+    private final Histogram waits = new Histogram();
+
+    private ScriptMetrics(String configId) {
+        this.configId = configId;
+        for (int i = 0; i < phases.length; i++) {
+            phases[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Returns the metrics of the given config, creates them on first use.
+     */
+    public static ScriptMetrics get(String configId) {
+        ScriptMetrics metrics = ALL.get(configId);
+        if (metrics == null) {
+            final ScriptMetrics created = new ScriptMetrics(configId);
+            metrics = ALL.putIfAbsent(configId, created);
+            if (metrics == null) {
+                metrics = created;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Forgets the metrics of a removed config.
+     */
+    public static void remove(String configId) {
+        ALL.remove(configId);
+    }
+
+    /**
+     * @return the metrics of all configs that have been executed since startup (and not removed since), ordered by config id
+     */
+    public static SortedMap<String, ScriptMetrics> getAll() {
+        return Collections.unmodifiableSortedMap(new TreeMap<String, ScriptMetrics>(ALL));
+    }
+
+    /**
+     * Records a finished execution.
+     *
+     * @param sample
+     *            the measurements of the execution
+     * @param exitCode
+     *            the exit code of the script, <code>-1</code> if it did not finish
+     */
+    public void record(Sample sample, int exitCode) {
+        executions.incrementAndGet();
+        for (Phase phase : Phase.values()) {
+            phases[phase.ordinal()].add(sample.millis[phase.ordinal()]);
+        }
+        bytesTransferred.addAndGet(sample.bytesTransferred);
+        AtomicLong count = exitCodes.get(exitCode);
+        if (count == null) {
+            final AtomicLong created = new AtomicLong();
+            count = exitCodes.putIfAbsent(exitCode, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * Records that an execution exceeded its budget and was killed.
+     *
+     * @param heldMillis
+     *            how long the executor was held by the execution until it got freed
+     */
+    public void recordTimeout(long heldMillis) {
+        timeouts.incrementAndGet();
+        executorMillisFreed.addAndGet(heldMillis);
+    }
+
+    /**
+     * Records that the results of an execution were restored from the {@link BuildCache}.
+     */
+    public void recordCacheHit() {
+        cacheHits.incrementAndGet();
+    }
+
+    /**
+     * Records that a cacheable script had to be executed because the {@link BuildCache} had no results for its inputs.
+     */
+    public void recordCacheMiss() {
+        cacheMisses.incrementAndGet();
+    }
+
+    /**
+     * Records how long an execution waited for a permit of the {@link ScriptThrottle}.
+     */
+    public void recordWait(long millis) {
+        waits.add(millis);
+    }
+
+    public String getConfigId() {
+        return configId;
+    }
+
+    public long getExecutions() {
+        return executions.get();
+    }
+
+    public Histogram getHistogram(Phase phase) {
+        return phases[phase.ordinal()];
+    }
+
+    /**
+     * @return number of executions by exit code
+     */
+    public SortedMap<Integer, Long> getExitCodes() {
+        final SortedMap<Integer, Long> codes = new TreeMap<Integer, Long>();
+        for (Map.Entry<Integer, AtomicLong> e : exitCodes.entrySet()) {
+            codes.put(e.getKey(), e.getValue().get());
+        }
+        return codes;
+    }
+
+    /**
+     * @return bytes of script content sent to the execution hosts
+     */
+    public long getBytesTransferred() {
+        return bytesTransferred.get();
+    }
+
+    /**
+     * @return number of executions killed because of a timeout
+     */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * @return total time executors were held by executions that got killed because of a timeout
+     */
+    public long getExecutorMillisFreed() {
+        return executorMillisFreed.get();
+    }
+
+    /**
+     * @return the times executions waited for a permit of the {@link ScriptThrottle}, empty if the script is not throttled
+     */
+    public Histogram getWaitHistogram() {
+        return waits;
+    }
+
+    /**
+     * @return number of executions currently waiting for a permit of the {@link ScriptThrottle}
+     */
+    public int getQueueDepth() {
+        return ScriptThrottle.getWaiting(configId);
+    }
+
+    /**
+     * @return number of executions currently holding a permit of the {@link ScriptThrottle}
+     */
+    public int getRunning() {
+        return ScriptThrottle.getRunning(configId);
+    }
+
+    /**
+     * @return number of executions of a cacheable script answered by the {@link BuildCache}
+     */
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    /**
+     * @return number of executions of a cacheable script not answered by the {@link BuildCache}
+     */
+    public long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    /**
+     * Latency histogram of one phase, see {@link ScriptMetrics#BUCKETS}.
+     */
+    public static final class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS.length + 1);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+
+        void add(long millis) {
+            int i = 0;
+            while (i < BUCKETS.length && millis > BUCKETS[i]) {
+                i++;
+            }
+            buckets.incrementAndGet(i);
+            count.incrementAndGet();
+            sum.addAndGet(millis);
+        }
+
+        /**
+         * @return the number of values in the given bucket (not cumulative)
+         */
+        public long getBucket(int i) {
+            return buckets.get(i);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getSumMillis() {
+            return sum.get();
+        }
+
+        public long getMeanMillis() {
+            final long c = count.get();
+            return c == 0 ? 0 : sum.get() / c;
+        }
+
+        /**
+         * @return upper bound of the bucket containing the given quantile, <code>-1</code> if it is in the unbounded bucket
+         */
+        public long getQuantileMillis(double q) {
+            final long c = count.get();
+            if (c == 0) {
+                return 0;
+            }
+            long seen = 0;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                seen += buckets.get(i);
+                if (seen >= q * c) {
+                    return BUCKETS[i];
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * The measurements of a single execution. Each call of {@link #lap(Phase)} attributes the time since the previous call to the given phase.
+     */
+    public static final class Sample {
+        private final long[] millis = new long[Phase.values().length];
+        private long bytesTransferred;
+        private long mark = System.currentTimeMillis();
+
+        public void lap(Phase phase) {
+            final long now = System.currentTimeMillis();
+            millis[phase.ordinal()] += now - mark;
+            mark = now;
+        }
+
+        /**
+         * Adds the phases measured on the execution host. The rest of the time since the previous lap (the round trip to the execution host) is attributed
+         * to {@link Phase#SPAWN}.
+         *
+         * @param remoteMillis
+         *            the durations of the phases on the execution host, indexed by {@link Phase#ordinal()}
+         */
+        public void merge(long[] remoteMillis) {
+            final long now = System.currentTimeMillis();
+            long remote = 0;
+            for (int i = 0; i < millis.length && i < remoteMillis.length; i++) {
+                millis[i] += remoteMillis[i];
+                remote += remoteMillis[i];
+            }
+            millis[Phase.SPAWN.ordinal()] += Math.max(0, now - mark - remote);
+            mark = now;
+        }
+
+        /**
+         * Discards the time since the previous lap, e.g. the time spent waiting for a permit.
+         */
+        public void skip() {
+            mark = System.currentTimeMillis();
+        }
+
+        public void addBytesTransferred(long bytes) {
+            bytesTransferred += bytes;
+        }
+
+        public long getMillis(Phase phase) {
+            return millis[phase.ordinal()];
+        }
+
+        public long getBytesTransferred() {
+            return bytesTransferred;
+        }
+
+        /**
+         * @return a short summary for the build log
+         */
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder("phases:");
+            for (Phase phase : Phase.values()) {
+                sb.append(' ').append(phase.getLabel()).append(' ').append(millis[phase.ordinal()]).append("ms");
+            }
+            return sb.append(", ").append(bytesTransferred).append(" bytes transferred").toString();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.model.ManagementLink;
+import hudson.security.Permission;
+import hudson.security.PermissionGroup;
+import hudson.security.PermissionScope;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.SortedMap;
+
+import jenkins.model.Jenkins;
+
+import org.jenkinsci.lib.configprovider.ConfigProvider;
+import org.jenkinsci.lib.configprovider.model.Config;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Shows the {@link ScriptMetrics} on a management page and exposes them in the Prometheus text format at <code>/managed-scripts-metrics/prometheus</code>.
+ */
+@Extension
+public class ScriptMetricsLink extends ManagementLink {
+
+    public static final PermissionGroup PERMISSIONS = new PermissionGroup(ScriptMetricsLink.class, Messages._metrics_permissions_title());
+
+    /**
+     * allows to scrape the metrics in the Prometheus format without being an administrator, e.g. for the account of a monitoring system
+     */
+    public static final Permission READ = new Permission(PERMISSIONS, "Read", Messages._metrics_permission_read_description(), Jenkins.ADMINISTER,
+            PermissionScope.JENKINS);
+
+    @Override
+    public String getIconFileName() {
+        return "clipboard.png";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "managed-scripts-metrics";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.metrics_name();
+    }
+
+    @Override
+    public String getDescription() {
+        return Messages.metrics_description();
+    }
+
+    public SortedMap<String, ScriptMetrics> getMetrics() {
+        return ScriptMetrics.getAll();
+    }
+
+    public ScriptMetrics.Phase[] getPhases() {
+        return ScriptMetrics.Phase.values();
+    }
+
+    /**
+     * @return the name of the config with the given id, the id itself if the config does not exist (anymore)
+     */
+    public String getConfigName(String configId) {
+        ExtensionList<ConfigProvider> providers = ConfigProvider.all();
+        for (ConfigProvider provider : providers) {
+            if (provider instanceof AbstractScriptConfigProvider) {
+                final Config config = ((AbstractScriptConfigProvider) provider).getCatalog().get(configId);
+                if (config != null) {
+                    return config.name;
+                }
+            }
+        }
+        return configId;
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text exposition format.
+     */
+    public void doPrometheus(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.getInstance().checkPermission(READ);
+        rsp.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+        final PrintWriter w = rsp.getWriter();
+        final SortedMap<String, ScriptMetrics> all = ScriptMetrics.getAll();
+
+        w.println("# HELP managed_script_phase_seconds Duration of the phases of managed script executions.");
+        w.println("# TYPE managed_script_phase_seconds histogram");
+        for (ScriptMetrics metrics : all.values()) {
+            for (ScriptMetrics.Phase phase : ScriptMetrics.Phase.values()) {
+                final ScriptMetrics.Histogram h = metrics.getHistogram(phase);
+                final String labels = "script=\"" + escape(metrics.getConfigId()) + "\",phase=\"" + phase.getLabel() + "\"";
+                long cumulative = 0;
+                for (int i = 0; i < ScriptMetrics.BUCKETS.length; i++) {
+                    cumulative += h.getBucket(i);
+                    w.println("managed_script_phase_seconds_bucket{" + labels + ",le=\"" + seconds(ScriptMetrics.BUCKETS[i]) + "\"} " + cumulative);
+                }
+                w.println("managed_script_phase_seconds_bucket{" + labels + ",le=\"+Inf\"} " + h.getCount());
+                w.println("managed_script_phase_seconds_sum{" + labels + "} " + seconds(h.getSumMillis()));
+                w.println("managed_script_phase_seconds_count{" + labels + "} " + h.getCount());
+            }
+        }
+
+        w.println("# HELP managed_script_exit_codes_total Finished managed script executions by exit code (-1: did not finish).");
+        w.println("# TYPE managed_script_exit_codes_total counter");
+        for (ScriptMetrics metrics : all.values()) {
+            for (Map.Entry<Integer, Long> e : metrics.getExitCodes().entrySet()) {
+                w.println("managed_script_exit_codes_total{script=\"" + escape(metrics.getConfigId()) + "\",code=\"" + e.getKey() + "\"} " + e.getValue());
+            }
+        }
+
+        w.println("# HELP managed_script_transferred_bytes_total Bytes of script content sent to the execution hosts.");
+        w.println("# TYPE managed_script_transferred_bytes_total counter");
+        for (ScriptMetrics metrics : all.values()) {
+            w.println("managed_script_transferred_bytes_total{script=\"" + escape(metrics.getConfigId()) + "\"} " + metrics.getBytesTransferred());
+        }
+
+        w.println("# HELP managed_script_timeouts_total Managed script executions killed because they exceeded their timeout.");
+        w.println("# TYPE managed_script_timeouts_total counter");
+        for (ScriptMetrics metrics : all.values()) {
+            w.println("managed_script_timeouts_total{script=\"" + escape(metrics.getConfigId()) + "\"} " + metrics.getTimeouts());
+        }
+
+        w.println("# HELP managed_script_throttle_wait_seconds Time throttled managed script executions waited for a permit.");
+        w.println("# TYPE managed_script_throttle_wait_seconds histogram");
+        for (ScriptMetrics metrics : all.values()) {
+            final ScriptMetrics.Histogram h = metrics.getWaitHistogram();
+            if (h.getCount() == 0) {
+                continue;
+            }
+            final String labels = "script=\"" + escape(metrics.getConfigId()) + "\"";
+            long cumulative = 0;
+            for (int i = 0; i < ScriptMetrics.BUCKETS.length; i++) {
+                cumulative += h.getBucket(i);
+                w.println("managed_script_throttle_wait_seconds_bucket{" + labels + ",le=\"" + seconds(ScriptMetrics.BUCKETS[i]) + "\"} " + cumulative);
+            }
+            w.println("managed_script_throttle_wait_seconds_bucket{" + labels + ",le=\"+Inf\"} " + h.getCount());
+            w.println("managed_script_throttle_wait_seconds_sum{" + labels + "} " + seconds(h.getSumMillis()));
+            w.println("managed_script_throttle_wait_seconds_count{" + labels + "} " + h.getCount());
+        }
+
+        w.println("# HELP managed_script_throttle_queue_depth Throttled managed script executions currently waiting for a permit.");
+        w.println("# TYPE managed_script_throttle_queue_depth gauge");
+        for (ScriptMetrics metrics : all.values()) {
+            if (metrics.getWaitHistogram().getCount() > 0) {
+                w.println("managed_script_throttle_queue_depth{script=\"" + escape(metrics.getConfigId()) + "\"} " + metrics.getQueueDepth());
+            }
+        }
+
+        w.println("# HELP managed_script_throttle_running Throttled managed script executions currently holding a permit.");
+        w.println("# TYPE managed_script_throttle_running gauge");
+        for (ScriptMetrics metrics : all.values()) {
+            if (metrics.getWaitHistogram().getCount() > 0) {
+                w.println("managed_script_throttle_running{script=\"" + escape(metrics.getConfigId()) + "\"} " + metrics.getRunning());
+            }
+        }
+
+        w.println("# HELP managed_script_build_cache_total Executions of cacheable managed scripts by build cache result.");
+        w.println("# TYPE managed_script_build_cache_total counter");
+        for (ScriptMetrics metrics : all.values()) {
+            if (metrics.getCacheHits() + metrics.getCacheMisses() > 0) {
+                w.println("managed_script_build_cache_total{script=\"" + escape(metrics.getConfigId()) + "\",result=\"hit\"} " + metrics.getCacheHits());
+                w.println("managed_script_build_cache_total{script=\"" + escape(metrics.getConfigId()) + "\",result=\"miss\"} " + metrics.getCacheMisses());
+            }
+        }
+        w.flush();
+    }
+
+    private static String seconds(long millis) {
+        return Double.toString(millis / 1000.0);
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,668 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.ManagementLink;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.jenkinsci.lib.configprovider.model.Config;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.Stapler;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Full-text search over the managed scripts ({@link ScriptConfig}) and batch files ({@link WinBatchConfig}): name, comment, argument names and content.
+ * <p>
+ * An inverted index maps every token (a run of letters, digits and underscores, lower case) to the configs containing it, a query matches the configs
+ * containing all of its tokens, each as a prefix of a token of the config (<code>subprocess.chec</code> finds <code>subprocess.check_call</code>). Only
+ * the page of results returned gets its content loaded, for the snippets of the matching lines. The index is kept on the heap, built on the first search
+ * and updated whenever a config is saved or removed (see {@link AbstractScriptConfigProvider}).
+ * <p>
+ * Available at <code>/managed-scripts-search/</code> and as JSON at <code>/managed-scripts-search/api?q=...&amp;offset=0&amp;limit=20</code>.
+ */
+@Extension
+public class ScriptSearchIndex extends ManagementLink {
+
+    private static final Logger LOGGER = Logger.getLogger(ScriptSearchIndex.class.getName());
+
+    /**
+     * tokens longer than this are not indexed (e.g. encoded binaries) and shortened in queries
+     */
+    static final int MAX_TOKEN_LENGTH = 64;
+
+    /**
+     * upper bound for the page size of {@link #search(String, int, int)}
+     */
+    public static final int MAX_PAGE_SIZE = 100;
+
+    /**
+     * number of results per page of the search page
+     */
+    static final int PAGE_SIZE = 20;
+
+    /**
+     * maximum number of matching lines reported per config
+     */
+    static final int MAX_SNIPPETS = 3;
+
+    /**
+     * maximum length of a reported line
+     */
+    static final int MAX_SNIPPET_LENGTH = 200;
+
+    private static final Object LOCK = new Object();
+
+    // the index, null until built by the first search
+    private static Index index;
+
+    // the changes made while the index is built, null if no build is running
+    private static List<Change> pending;
+
+    @Override
+    public String getIconFileName() {
+        return "search.png";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "managed-scripts-search";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.search_name();
+    }
+
+    @Override
+    public String getDescription() {
+        return Messages.search_description();
+    }
+
+    /**
+     * Updates the index after a config has been saved or removed, called by {@link AbstractScriptConfigProvider}.
+     *
+     * @param provider
+     *            the provider of the config
+     * @param configId
+     *            the id of the config
+     * @param config
+     *            the new version of the config (including the content), <code>null</code> if it has been removed
+     */
+    static void changed(AbstractScriptConfigProvider provider, String configId, Config config) {
+        final BulkTransfer.Kind kind = kindOf(provider);
+        if (kind == null) {
+            return;
+        }
+        synchronized (LOCK) {
+            final Change change = new Change(kind, configId, config);
+            if (pending != null) {
+                pending.add(change);
+            }
+            if (index != null) {
+                change.apply(index);
+            }
+        }
+    }
+
+    /**
+     * Drops the index after a provider (re)loaded its configs, it is built again by the next search.
+     */
+    static void invalidate(AbstractScriptConfigProvider provider) {
+        if (kindOf(provider) == null) {
+            return;
+        }
+        synchronized (LOCK) {
+            index = null;
+            pending = null;
+        }
+    }
+
+    private static BulkTransfer.Kind kindOf(AbstractScriptConfigProvider provider) {
+        if (provider instanceof ScriptConfig.ScriptConfigProvider) {
+            return BulkTransfer.Kind.SCRIPTS;
+        }
+        if (provider instanceof WinBatchConfig.WinBatchConfigProvider) {
+            return BulkTransfer.Kind.BATCH;
+        }
+        return null;
+    }
+
+    /**
+     * Searches the managed scripts and batch files.
+     *
+     * @param query
+     *            the words to search for
+     * @param offset
+     *            the number of results to skip
+     * @param limit
+     *            the maximum number of results to return, at most {@link #MAX_PAGE_SIZE}
+     * @return the results, best first: matches in the name before matches in the arguments and the comment before matches in the content only
+     */
+    public Result search(String query, int offset, int limit) {
+        final List<String> tokens = tokenize(query, true);
+        if (tokens.isEmpty()) {
+            return new Result(tokens, 0, 0, Collections.<Hit> emptyList());
+        }
+        final Index current = ensureBuilt();
+        final List<Document> matches;
+        synchronized (LOCK) {
+            matches = current.find(tokens);
+        }
+        Collections.sort(matches, new Comparator<Document>() {
+            final Map<Document, Integer> scores = new HashMap<Document, Integer>();
+
+            public int compare(Document a, Document b) {
+                final int diff = score(b) - score(a);
+                return diff != 0 ? diff : a.name.compareTo(b.name);
+            }
+
+            private int score(Document d) {
+                Integer score = scores.get(d);
+                if (score == null) {
+                    score = d.score(tokens);
+                    scores.put(d, score);
+                }
+                return score;
+            }
+        });
+        final int from = Math.min(Math.max(0, offset), matches.size());
+        final int to = Math.min(from + Math.max(1, Math.min(limit, MAX_PAGE_SIZE)), matches.size());
+        final List<Hit> hits = new ArrayList<Hit>(to - from);
+        // the content is loaded outside of the lock, loading it may wait for a provider saving a config
+        for (Document d : matches.subList(from, to)) {
+            final AbstractScriptConfigProvider provider = d.kind.getProvider();
+            final Config config = provider == null ? null : provider.getConfigById(d.id);
+            hits.add(new Hit(d, config == null ? Collections.<Snippet> emptyList() : snippets(config.content, tokens)));
+        }
+        return new Result(tokens, matches.size(), from, hits);
+    }
+
+    /**
+     * @return the number of results per page of the search page
+     */
+    public int getPageSize() {
+        return PAGE_SIZE;
+    }
+
+    /**
+     * @return the results for the parameters <code>q</code> and <code>offset</code> of the current request, <code>null</code> if nothing has been
+     *         searched for yet
+     */
+    public Result getResult() {
+        final StaplerRequest req = Stapler.getCurrentRequest();
+        final String q = Util.fixEmptyAndTrim(req.getParameter("q"));
+        if (q == null) {
+            return null;
+        }
+        int offset = 0;
+        try {
+            offset = Integer.parseInt(Util.fixNull(req.getParameter("offset")));
+        } catch (NumberFormatException e) {
+            // first page
+        }
+        return search(q, Math.max(0, offset), PAGE_SIZE);
+    }
+
+    /**
+     * JSON API: the configs matching the query, with the matching lines.
+     * <p>
+     * <code>{"query": "...", "total": 42, "offset": 0, "results": [{"id": "...", "kind": "scripts", "name": "...", "comment": "...",
+     * "url": "configfiles/show?id=...", "snippets": [{"line": 12, "text": "..."}]}]}</code>
+     */
+    public void doApi(StaplerRequest req, StaplerResponse rsp, @QueryParameter String q, @QueryParameter int offset, @QueryParameter int limit)
+            throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        final Result result = search(q, offset, limit <= 0 ? PAGE_SIZE : limit);
+        final JSONArray results = new JSONArray();
+        for (Hit hit : result.getHits()) {
+            final JSONObject h = new JSONObject();
+            h.put("id", hit.getId());
+            h.put("kind", hit.getKind());
+            h.put("name", hit.getName());
+            h.put("comment", hit.getComment());
+            h.put("url", hit.getUrl());
+            final JSONArray snippets = new JSONArray();
+            for (Snippet snippet : hit.getSnippets()) {
+                final JSONObject s = new JSONObject();
+                s.put("line", snippet.getLine());
+                s.put("text", snippet.getText());
+                snippets.add(s);
+            }
+            h.put("snippets", snippets);
+            results.add(h);
+        }
+        final JSONObject json = new JSONObject();
+        json.put("query", Util.fixNull(q));
+        json.put("total", result.getTotal());
+        json.put("offset", result.getOffset());
+        json.put("results", results);
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(json.toString());
+    }
+
+    /**
+     * @return the index, built if there is none yet
+     */
+    private static Index ensureBuilt() {
+        synchronized (LOCK) {
+            while (index == null && pending != null) {
+                // another search is building the index
+                try {
+                    LOCK.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return new Index();
+                }
+            }
+            if (index != null) {
+                return index;
+            }
+            pending = new ArrayList<Change>();
+        }
+        Index built = null;
+        try {
+            // the configs are read without holding the lock, the providers call changed() while holding their own lock
+            built = readAll();
+        } finally {
+            synchronized (LOCK) {
+                // applying the changes made in the meantime in order leaves the latest version of every config
+                if (built != null && pending != null) {
+                    for (Change change : pending) {
+                        change.apply(built);
+                    }
+                    index = built;
+                }
+                pending = null;
+                LOCK.notifyAll();
+            }
+        }
+        return built;
+    }
+
+    private static Index readAll() {
+        final long start = System.currentTimeMillis();
+        final Index built = new Index();
+        for (BulkTransfer.Kind kind : new BulkTransfer.Kind[] { BulkTransfer.Kind.SCRIPTS, BulkTransfer.Kind.BATCH }) {
+            final AbstractScriptConfigProvider provider = kind.getProvider();
+            if (provider == null) {
+                continue;
+            }
+            for (Config metadata : provider.getAllConfigs()) {
+                final Config config = provider.getConfigById(metadata.id);
+                if (config != null) {
+                    built.add(new Document(kind, config));
+                }
+            }
+        }
+        LOGGER.fine("indexed " + built.byKey.size() + " managed scripts in " + (System.currentTimeMillis() - start) + " ms");
+        return built;
+    }
+
+    /**
+     * Splits a text into lower case tokens: runs of letters, digits and underscores.
+     *
+     * @param query
+     *            whether the text is a query: tokens are kept in order, long tokens are shortened instead of skipped
+     */
+    static List<String> tokenize(String text, boolean query) {
+        final Set<String> tokens = new LinkedHashSet<String>();
+        if (text == null) {
+            return new ArrayList<String>(tokens);
+        }
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            final boolean word = i < text.length() && isWordChar(text.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                if (i - start <= MAX_TOKEN_LENGTH) {
+                    tokens.add(text.substring(start, i).toLowerCase(Locale.ENGLISH));
+                } else if (query) {
+                    tokens.add(text.substring(start, start + MAX_TOKEN_LENGTH).toLowerCase(Locale.ENGLISH));
+                }
+                start = -1;
+            }
+        }
+        return new ArrayList<String>(tokens);
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    /**
+     * @return the first lines of the content containing one of the tokens
+     */
+    static List<Snippet> snippets(String content, List<String> tokens) {
+        final List<Snippet> snippets = new ArrayList<Snippet>();
+        if (content == null) {
+            return snippets;
+        }
+        int line = 0;
+        int start = 0;
+        while (start <= content.length() && snippets.size() < MAX_SNIPPETS) {
+            int end = content.indexOf('\n', start);
+            if (end < 0) {
+                end = content.length();
+            }
+            line++;
+            final String text = content.substring(start, end);
+            final String lower = text.toLowerCase(Locale.ENGLISH);
+            for (String token : tokens) {
+                final int at = lower.indexOf(token);
+                if (at >= 0) {
+                    snippets.add(new Snippet(line, shorten(text, at)));
+                    break;
+                }
+            }
+            start = end + 1;
+        }
+        return snippets;
+    }
+
+    private static String shorten(String line, int at) {
+        final String trimmed = line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+        if (trimmed.length() <= MAX_SNIPPET_LENGTH) {
+            return trimmed;
+        }
+        final int from = Math.max(0, Math.min(at - MAX_SNIPPET_LENGTH / 4, trimmed.length() - MAX_SNIPPET_LENGTH));
+        return (from > 0 ? "..." : "") + trimmed.substring(from, from + MAX_SNIPPET_LENGTH) + (from + MAX_SNIPPET_LENGTH < trimmed.length() ? "..." : "");
+    }
+
+    /**
+     * A saved or removed config.
+     */
+    private static final class Change {
+        final BulkTransfer.Kind kind;
+        final String configId;
+        final Config config;
+
+        Change(BulkTransfer.Kind kind, String configId, Config config) {
+            this.kind = kind;
+            this.configId = configId;
+            this.config = config;
+        }
+
+        void apply(Index index) {
+            index.remove(kind, configId);
+            if (config != null) {
+                index.add(new Document(kind, config));
+            }
+        }
+    }
+
+    /**
+     * The inverted index: the documents by number and the numbers of the documents containing a token, by token.
+     */
+    private static final class Index {
+        private final List<Document> documents = new ArrayList<Document>();
+        private final Map<String, Document> byKey = new HashMap<String, Document>();
+        private final TreeMap<String, BitSet> postings = new TreeMap<String, BitSet>();
+        // the numbers in use
+        private final BitSet used = new BitSet();
+
+        void add(Document d) {
+            d.number = used.nextClearBit(0);
+            used.set(d.number);
+            if (d.number == documents.size()) {
+                documents.add(d);
+            } else {
+                documents.set(d.number, d);
+            }
+            byKey.put(d.getKey(), d);
+            for (String token : d.tokens) {
+                BitSet docs = postings.get(token);
+                if (docs == null) {
+                    docs = new BitSet();
+                    postings.put(token, docs);
+                }
+                docs.set(d.number);
+            }
+        }
+
+        void remove(BulkTransfer.Kind kind, String configId) {
+            final Document d = byKey.remove(kind.dir + "/" + configId);
+            if (d == null) {
+                return;
+            }
+            for (String token : d.tokens) {
+                final BitSet docs = postings.get(token);
+                if (docs != null) {
+                    docs.clear(d.number);
+                    if (docs.isEmpty()) {
+                        postings.remove(token);
+                    }
+                }
+            }
+            documents.set(d.number, null);
+            used.clear(d.number);
+        }
+
+        /**
+         * @return the documents containing a token starting with each of the given tokens
+         */
+        List<Document> find(List<String> tokens) {
+            BitSet result = null;
+            for (String token : tokens) {
+                final BitSet docs = new BitSet();
+                // all tokens starting with the given one
+                final SortedMap<String, BitSet> range = postings.subMap(token, token + Character.MAX_VALUE);
+                for (BitSet d : range.values()) {
+                    docs.or(d);
+                }
+                if (result == null) {
+                    result = docs;
+                } else {
+                    result.and(docs);
+                }
+                if (result.isEmpty()) {
+                    break;
+                }
+            }
+            final List<Document> found = new ArrayList<Document>(result == null ? 0 : result.cardinality());
+            if (result != null) {
+                for (int i = result.nextSetBit(0); i >= 0; i = result.nextSetBit(i + 1)) {
+                    found.add(documents.get(i));
+                }
+            }
+            return found;
+        }
+    }
+
+    /**
+     * An indexed config: its tokens and the metadata shown in the results, the content is not kept.
+     */
+    private static final class Document {
+        final BulkTransfer.Kind kind;
+        final String id;
+        final String name;
+        final String comment;
+        final String args;
+        final String[] tokens;
+        int number;
+
+        Document(BulkTransfer.Kind kind, Config config) {
+            this.kind = kind;
+            this.id = config.id;
+            this.name = Util.fixNull(config.name);
+            this.comment = Util.fixNull(config.comment);
+            final StringBuilder sb = new StringBuilder();
+            if (config instanceof ScriptConfig && ((ScriptConfig) config).args != null) {
+                for (ScriptConfig.Arg arg : ((ScriptConfig) config).args) {
+                    sb.append(arg.name).append('\n');
+                }
+            } else if (config instanceof WinBatchConfig && ((WinBatchConfig) config).args != null) {
+                for (WinBatchConfig.Arg arg : ((WinBatchConfig) config).args) {
+                    sb.append(arg.name).append('\n');
+                }
+            }
+            this.args = sb.toString();
+            final Set<String> all = new LinkedHashSet<String>();
+            all.addAll(tokenize(name, false));
+            all.addAll(tokenize(comment, false));
+            all.addAll(tokenize(args, false));
+            all.addAll(tokenize(config.content, false));
+            this.tokens = all.toArray(new String[all.size()]);
+        }
+
+        String getKey() {
+            return kind.dir + "/" + id;
+        }
+
+        /**
+         * @return the weight of the fields containing the query tokens: 4 for the name, 2 for the arguments and the comment, 1 for the content
+         */
+        int score(List<String> query) {
+            final List<String> nameTokens = tokenize(name, false);
+            final List<String> otherTokens = tokenize(comment + "\n" + args, false);
+            int score = 0;
+            for (String token : query) {
+                if (startsAny(nameTokens, token)) {
+                    score += 4;
+                } else if (startsAny(otherTokens, token)) {
+                    score += 2;
+                } else {
+                    score += 1;
+                }
+            }
+            return score;
+        }
+
+        private static boolean startsAny(List<String> tokens, String prefix) {
+            for (String token : tokens) {
+                if (token.startsWith(prefix)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A page of search results.
+     */
+    public static final class Result {
+        private final List<String> tokens;
+        private final int total;
+        private final int offset;
+        private final List<Hit> hits;
+
+        Result(List<String> tokens, int total, int offset, List<Hit> hits) {
+            this.tokens = tokens;
+            this.total = total;
+            this.offset = offset;
+            this.hits = hits;
+        }
+
+        /**
+         * @return the tokens searched for
+         */
+        public List<String> getTokens() {
+            return tokens;
+        }
+
+        /**
+         * @return the number of matching configs, including the ones not on this page
+         */
+        public int getTotal() {
+            return total;
+        }
+
+        /**
+         * @return the number of matching configs before this page
+         */
+        public int getOffset() {
+            return offset;
+        }
+
+        public List<Hit> getHits() {
+            return hits;
+        }
+    }
+
+    /**
+     * A matching config.
+     */
+    public static final class Hit {
+        private final Document document;
+        private final List<Snippet> snippets;
+
+        Hit(Document document, List<Snippet> snippets) {
+            this.document = document;
+            this.snippets = snippets;
+        }
+
+        public String getId() {
+            return document.id;
+        }
+
+        /**
+         * @return <code>scripts</code> or <code>batch</code>
+         */
+        public String getKind() {
+            return document.kind.dir;
+        }
+
+        public String getName() {
+            return document.name;
+        }
+
+        public String getComment() {
+            return document.comment;
+        }
+
+        /**
+         * @return the URL of the config page, relative to the root URL
+         */
+        public String getUrl() {
+            return "configfiles/show?id=" + Util.rawEncode(document.id);
+        }
+
+        public List<Snippet> getSnippets() {
+            return snippets;
+        }
+    }
+
+    /**
+     * A matching line of the content.
+     */
+    public static final class Snippet {
+        private final int line;
+        private final String text;
+
+        Snippet(int line, String text) {
+            this.line = line;
+            this.text = text;
+        }
+
+        /**
+         * @return the line number, starting with 1
+         */
+        public int getLine() {
+            return line;
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.Util;
+import hudson.model.TaskListener;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits the number of executions of a managed script at the same time on the master, over all builds and nodes (see
+ * {@link ScriptConfig#maxConcurrent} and {@link WinBatchConfig#maxConcurrent}).
+ * <p>
+ * Changing the limit of a script resizes its throttle: a higher limit lets waiting executions start at once, a lower one lets new executions wait until
+ * enough running ones finished. Changing the fairness takes effect once no execution of the script is running or waiting. The wait times are recorded
+ * in the {@link ScriptMetrics} of the script.
+ */
+final class ScriptThrottle {
+
+    private static final ConcurrentMap<String, ScriptThrottle> ALL = new ConcurrentHashMap<String, ScriptThrottle>();
+
+    private volatile int limit;
+    private final boolean fair;
+    private final Permits permits;
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    private ScriptThrottle(int limit, boolean fair) {
+        this.limit = limit;
+        this.fair = fair;
+        this.permits = new Permits(limit, fair);
+    }
+
+    /**
+     * Waits for a permit to execute the given script.
+     *
+     * @param configId
+     *            the id of the script
+     * @param name
+     *            the name of the script, for the build log
+     * @param limit
+     *            the maximum number of executions at the same time, <code>0</code> for no limit
+     * @param fair
+     *            whether the permits are granted in the order they were asked for
+     * @param listener
+     *            gets the waiting state
+     * @return the permit, has to be released after the execution
+     * @throws InterruptedException
+     *             if the build got aborted while waiting
+     */
+    static Permit acquire(String configId, String name, int limit, boolean fair, TaskListener listener) throws InterruptedException {
+        if (limit <= 0) {
+            return Permit.NONE;
+        }
+        final ScriptThrottle throttle = get(configId, limit, fair);
+        // a fair semaphore would grant the permit to an earlier waiter, so don't barge
+        if (fair ? throttle.permits.tryAcquire(0, TimeUnit.SECONDS) : throttle.permits.tryAcquire()) {
+            ScriptMetrics.get(configId).recordWait(0);
+            return new Permit(throttle);
+        }
+        final long start = System.currentTimeMillis();
+        final int position = throttle.waiting.incrementAndGet();
+        listener.getLogger().println("waiting for one of the " + limit + " permits of managed script '" + name + "' (" + position + " waiting)");
+        try {
+            throttle.permits.acquire();
+        } finally {
+            throttle.waiting.decrementAndGet();
+        }
+        final long waited = System.currentTimeMillis() - start;
+        ScriptMetrics.get(configId).recordWait(waited);
+        listener.getLogger().println("got a permit of managed script '" + name + "' after " + Util.getTimeSpanString(waited));
+        return new Permit(throttle);
+    }
+
+    private static ScriptThrottle get(String configId, int limit, boolean fair) {
+        while (true) {
+            final ScriptThrottle current = ALL.get(configId);
+            if (current != null && (current.fair == fair || !current.isIdle())) {
+                current.resize(limit);
+                return current;
+            }
+            final ScriptThrottle created = new ScriptThrottle(limit, fair);
+            if (current == null ? ALL.putIfAbsent(configId, created) == null : ALL.replace(configId, current, created)) {
+                return created;
+            }
+        }
+    }
+
+    /**
+     * Changes the number of permits, the executions already holding one keep it.
+     */
+    private synchronized void resize(int newLimit) {
+        if (newLimit > limit) {
+            permits.release(newLimit - limit);
+        } else if (newLimit < limit) {
+            // may leave less than no permits available until enough running executions returned theirs
+            permits.reducePermits(limit - newLimit);
+        }
+        limit = newLimit;
+    }
+
+    private synchronized boolean isIdle() {
+        return waiting.get() == 0 && permits.availablePermits() == limit;
+    }
+
+    /**
+     * @return the number of executions of the given script waiting for a permit
+     */
+    static int getWaiting(String configId) {
+        final ScriptThrottle throttle = ALL.get(configId);
+        return throttle == null ? 0 : throttle.waiting.get();
+    }
+
+    /**
+     * @return the number of executions of the given script holding a permit
+     */
+    static int getRunning(String configId) {
+        final ScriptThrottle throttle = ALL.get(configId);
+        return throttle == null ? 0 : throttle.limit - throttle.permits.availablePermits();
+    }
+
+    /**
+     * @return the limit of the given script, <code>0</code> if it is not throttled (or has not been executed since startup)
+     */
+    static int getLimit(String configId) {
+        final ScriptThrottle throttle = ALL.get(configId);
+        return throttle == null ? 0 : throttle.limit;
+    }
+
+    /**
+     * A semaphore that can take permits away.
+     */
+    private static final class Permits extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        Permits(int permits, boolean fair) {
+            super(permits, fair);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+
+    /**
+     * The permission to execute a script once.
+     */
+    static final class Permit {
+        static final Permit NONE = new Permit(null);
+
+        private final ScriptThrottle throttle;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(ScriptThrottle throttle) {
+            this.throttle = throttle;
+        }
+
+        /**
+         * Returns the permit, can be called more than once.
+         */
+        void release() {
+            if (throttle != null && released.compareAndSet(false, true)) {
+                throttle.permits.release();
+            }
+        }
+    }
+}
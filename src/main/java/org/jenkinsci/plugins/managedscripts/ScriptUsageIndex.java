@@ -0,0 +1,414 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.XmlFile;
+import hudson.matrix.MatrixProject;
+import hudson.model.AbstractProject;
+import hudson.model.Item;
+import hudson.model.Project;
+import hudson.model.RootAction;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+import hudson.tasks.Builder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+/**
+ * Index of the jobs using the managed scripts: which build steps of which jobs reference a script.
+ * <p>
+ * The index is updated whenever a job is saved, renamed or deleted and persisted in <code>managed-scripts-usage.xml</code>, it is only built from all jobs
+ * if that file does not exist yet (or on request). Available at <code>/managed-scripts-usage/api?id=...</code> as JSON and on the page of each script.
+ */
+@Extension
+public class ScriptUsageIndex implements RootAction, Saveable {
+
+    private static final Logger LOGGER = Logger.getLogger(ScriptUsageIndex.class.getName());
+
+    /**
+     * usages by job full name, the persisted part of the index
+     */
+    private Map<String, List<Usage>> byJob = new HashMap<String, List<Usage>>();
+
+    /**
+     * job full names by script id
+     */
+    private transient Map<String, Set<String>> byScript = new HashMap<String, Set<String>>();
+
+    private transient boolean loaded;
+
+    /**
+     * @return the index, <code>null</code> if Jenkins is not running
+     */
+    public static ScriptUsageIndex get() {
+        final Jenkins jenkins = Jenkins.getInstance();
+        return jenkins == null ? null : jenkins.getExtensionList(RootAction.class).get(ScriptUsageIndex.class);
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return Messages.usage_name();
+    }
+
+    public String getUrlName() {
+        return "managed-scripts-usage";
+    }
+
+    /**
+     * @return the usages of the given script, ordered by job
+     */
+    public synchronized List<Usage> getUsages(String scriptId) {
+        ensureLoaded();
+        final Set<String> jobs = byScript.get(scriptId);
+        if (jobs == null) {
+            return Collections.emptyList();
+        }
+        final List<Usage> usages = new ArrayList<Usage>();
+        for (String job : jobs) {
+            for (Usage usage : byJob.get(job)) {
+                if (scriptId.equals(usage.scriptId)) {
+                    usages.add(usage);
+                }
+            }
+        }
+        return usages;
+    }
+
+    /**
+     * JSON API: the usages of the given script, of all scripts if no id is given.
+     * <p>
+     * <code>{"scriptId": [{"job": "folder/job", "url": "job/folder/job/job/", "step": "...", "position": 1}]}</code>
+     */
+    public void doApi(StaplerRequest req, StaplerResponse rsp, @QueryParameter String id) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        final JSONObject result = new JSONObject();
+        synchronized (this) {
+            ensureLoaded();
+            for (String scriptId : id == null ? new TreeSet<String>(byScript.keySet()) : Collections.singleton(id)) {
+                final JSONArray usages = new JSONArray();
+                for (Usage usage : getUsages(scriptId)) {
+                    final JSONObject u = new JSONObject();
+                    u.put("job", usage.job);
+                    u.put("url", usage.getUrl());
+                    u.put("step", usage.step);
+                    u.put("position", usage.position);
+                    usages.add(u);
+                }
+                result.put(scriptId, usages);
+            }
+        }
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(result.toString());
+    }
+
+    /**
+     * Rebuilds the index from all jobs, e.g. after jobs have been changed on disk.
+     */
+    @RequirePOST
+    public void doRebuild(StaplerRequest req, StaplerResponse rsp) throws IOException, ServletException {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        rebuild();
+        rsp.sendRedirect2(req.getContextPath() + "/" + getUrlName() + "/api");
+    }
+
+    /**
+     * Indexes all jobs again.
+     */
+    public synchronized void rebuild() {
+        loaded = true;
+        byJob.clear();
+        byScript.clear();
+        for (AbstractProject<?, ?> job : Jenkins.getInstance().getAllItems(AbstractProject.class)) {
+            final List<Usage> usages = scan(job);
+            if (!usages.isEmpty()) {
+                put(job.getFullName(), usages);
+            }
+        }
+        save();
+        LOGGER.log(Level.INFO, "Indexed the managed script usages of " + byJob.size() + " jobs");
+    }
+
+    synchronized void update(Item item) {
+        ensureLoaded();
+        final List<Usage> usages = scan(item);
+        final List<Usage> previous = byJob.get(item.getFullName());
+        if (previous == null ? usages.isEmpty() : previous.equals(usages)) {
+            return; // nothing changed, the usual case
+        }
+        remove(item.getFullName());
+        if (!usages.isEmpty()) {
+            put(item.getFullName(), usages);
+        }
+        save();
+    }
+
+    synchronized void rename(String oldFullName, Item item) {
+        ensureLoaded();
+        final List<Usage> usages = remove(oldFullName);
+        if (usages != null) {
+            final List<Usage> renamed = new ArrayList<Usage>(usages.size());
+            for (Usage usage : usages) {
+                renamed.add(new Usage(item.getFullName(), usage.step, usage.scriptId, usage.position));
+            }
+            put(item.getFullName(), renamed);
+            save();
+        }
+    }
+
+    synchronized void delete(Item item) {
+        ensureLoaded();
+        if (remove(item.getFullName()) != null) {
+            save();
+        }
+    }
+
+    private void put(String job, List<Usage> usages) {
+        byJob.put(job, usages);
+        for (Usage usage : usages) {
+            if (usage.scriptId == null) {
+                // persisted before scan() skipped the steps without a script
+                continue;
+            }
+            Set<String> jobs = byScript.get(usage.scriptId);
+            if (jobs == null) {
+                jobs = new TreeSet<String>();
+                byScript.put(usage.scriptId, jobs);
+            }
+            jobs.add(job);
+        }
+    }
+
+    private List<Usage> remove(String job) {
+        final List<Usage> usages = byJob.remove(job);
+        if (usages != null) {
+            for (Usage usage : usages) {
+                final Set<String> jobs = byScript.get(usage.scriptId);
+                if (jobs != null) {
+                    jobs.remove(job);
+                    if (jobs.isEmpty()) {
+                        byScript.remove(usage.scriptId);
+                    }
+                }
+            }
+        }
+        return usages;
+    }
+
+    /**
+     * @return the usages of managed scripts in the build steps of the given item
+     */
+    static List<Usage> scan(Item item) {
+        List<Builder> builders = null;
+        if (item instanceof Project) {
+            builders = ((Project<?, ?>) item).getBuilders();
+        } else if (item instanceof MatrixProject) {
+            builders = ((MatrixProject) item).getBuilders();
+        }
+        if (builders == null || builders.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final List<Usage> usages = new ArrayList<Usage>();
+        int position = 0;
+        for (Builder builder : builders) {
+            position++;
+            if (builder instanceof ScriptBuildStep) {
+                add(usages, item, builder, ((ScriptBuildStep) builder).getBuildStepId(), position);
+            } else if (builder instanceof WinBatchBuildStep) {
+                add(usages, item, builder, ((WinBatchBuildStep) builder).getBuildStepId(), position);
+            } else if (builder instanceof ParallelScriptBuildStep) {
+                for (ParallelScriptBuildStep.ScriptEntry entry : ((ParallelScriptBuildStep) builder).getScripts()) {
+                    add(usages, item, builder, entry.getBuildStepId(), position);
+                }
+            } else if (builder instanceof FanOutScriptBuildStep) {
+                add(usages, item, builder, ((FanOutScriptBuildStep) builder).getBuildStepId(), position);
+            }
+        }
+        return usages;
+    }
+
+    private static void add(List<Usage> usages, Item item, Builder builder, String scriptId, int position) {
+        // a step saved without picking a script uses none
+        if (Util.fixEmpty(scriptId) != null) {
+            usages.add(new Usage(item.getFullName(), builder.getDescriptor().getDisplayName(), scriptId, position));
+        }
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        final XmlFile file = getConfigFile();
+        if (!file.exists()) {
+            rebuild();
+            return;
+        }
+        try {
+            file.unmarshal(this);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to load " + file + ", rebuilding the index", e);
+            rebuild();
+            return;
+        }
+        final Map<String, List<Usage>> persisted = byJob == null ? new HashMap<String, List<Usage>>() : byJob;
+        byJob = new HashMap<String, List<Usage>>();
+        byScript = new HashMap<String, Set<String>>();
+        for (Map.Entry<String, List<Usage>> e : persisted.entrySet()) {
+            put(e.getKey(), e.getValue());
+        }
+    }
+
+    public synchronized void save() {
+        try {
+            getConfigFile().write(this);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save the managed script usage index", e);
+        }
+    }
+
+    private XmlFile getConfigFile() {
+        return new XmlFile(Jenkins.XSTREAM, new File(Jenkins.getInstance().getRootDir(), "managed-scripts-usage.xml"));
+    }
+
+    /**
+     * A build step of a job referencing a managed script.
+     */
+    public static final class Usage {
+        private final String job;
+        private final String step;
+        private final String scriptId;
+        private final int position;
+
+        Usage(String job, String step, String scriptId, int position) {
+            this.job = job;
+            this.step = step;
+            this.scriptId = scriptId;
+            this.position = position;
+        }
+
+        /**
+         * @return the full name of the job
+         */
+        public String getJob() {
+            return job;
+        }
+
+        /**
+         * @return the URL of the job, relative to the root URL
+         */
+        public String getUrl() {
+            return "job/" + job.replace("/", "/job/") + "/";
+        }
+
+        /**
+         * @return the display name of the build step type
+         */
+        public String getStep() {
+            return step;
+        }
+
+        public String getScriptId() {
+            return scriptId;
+        }
+
+        /**
+         * @return the position of the build step within the job, starting at 1
+         */
+        public int getPosition() {
+            return position;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Usage)) {
+                return false;
+            }
+            final Usage other = (Usage) obj;
+            return position == other.position && job.equals(other.job) && step.equals(other.step)
+                    && String.valueOf(scriptId).equals(String.valueOf(other.scriptId));
+        }
+
+        @Override
+        public int hashCode() {
+            return job.hashCode() * 31 + position;
+        }
+    }
+
+    /**
+     * Keeps the index up to date when jobs are created, copied, renamed or deleted.
+     */
+    @Extension
+    public static final class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onCreated(Item item) {
+            final ScriptUsageIndex index = get();
+            if (index != null) {
+                index.update(item);
+            }
+        }
+
+        @Override
+        public void onCopied(Item src, Item item) {
+            onCreated(item);
+        }
+
+        @Override
+        public void onRenamed(Item item, String oldName, String newName) {
+            final ScriptUsageIndex index = get();
+            if (index != null) {
+                final String parentName = item.getParent().getFullName();
+                index.rename(parentName.length() == 0 ? oldName : parentName + "/" + oldName, item);
+            }
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            final ScriptUsageIndex index = get();
+            if (index != null) {
+                index.delete(item);
+            }
+        }
+    }
+
+    /**
+     * Keeps the index up to date when the configuration of a job is saved.
+     */
+    @Extension
+    public static final class SaveableListenerImpl extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof AbstractProject) {
+                final ScriptUsageIndex index = get();
+                if (index != null) {
+                    index.update((Item) o);
+                }
+            }
+        }
+    }
+}
@@ -1,25 +1,35 @@
 package org.jenkinsci.plugins.managedscripts;
 
+import hudson.EnvVars;
 import hudson.Extension;
 import hudson.ExtensionList;
 import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.Util;
+import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
 import hudson.tasks.CommandInterpreter;
 import hudson.util.FormValidation;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
 import org.jenkinsci.lib.configprovider.ConfigProvider;
 import org.jenkinsci.lib.configprovider.model.Config;
 import org.jenkinsci.plugins.managedscripts.WinBatchConfig.Arg;
+import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.bind.JavaScriptMethod;
@@ -34,6 +44,7 @@ import org.kohsuke.stapler.bind.JavaScriptMethod;
 public class WinBatchBuildStep extends CommandInterpreter {
 
     private final String[] buildStepArgs;
+    private final Integer timeout;
 
     public static class ArgValue {
         public final String arg;
@@ -62,10 +73,13 @@ public class WinBatchBuildStep extends CommandInterpreter {
      *            the Id of the config file
      * @param scriptBuildStepArgs
      *            whether to save the args and arg values (the boolean is required because of html form submission, which also sends hidden values)
+     * @param timeout
+     *            execution budget in seconds, overrides the default timeout of the batch file if not empty
      */
     @DataBoundConstructor
-    public WinBatchBuildStep(String buildStepId, ScriptBuildStepArgs scriptBuildStepArgs) {
+    public WinBatchBuildStep(String buildStepId, ScriptBuildStepArgs scriptBuildStepArgs, String timeout) {
         super(buildStepId);
+        this.timeout = ProcessWatchdog.parseTimeout(timeout);
         List<String> l = null;
         if (scriptBuildStepArgs != null && scriptBuildStepArgs.defineArgs
                 && scriptBuildStepArgs.buildStepArgs != null) {
@@ -77,6 +91,10 @@ public class WinBatchBuildStep extends CommandInterpreter {
         this.buildStepArgs = l == null ? null : l.toArray(new String[l.size()]);
     }
 
+    public WinBatchBuildStep(String buildStepId, ScriptBuildStepArgs scriptBuildStepArgs) {
+        this(buildStepId, scriptBuildStepArgs, null);
+    }
+
     /**
      * The constructor
      *
@@ -88,6 +106,7 @@ public class WinBatchBuildStep extends CommandInterpreter {
     public WinBatchBuildStep(String buildStepId, String[] buildStepArgs) {
         super(buildStepId); // save buildStepId as command
         this.buildStepArgs = buildStepArgs;
+        this.timeout = null;
     }
 
     public String getBuildStepId() {
@@ -98,8 +117,91 @@ public class WinBatchBuildStep extends CommandInterpreter {
         return buildStepArgs;
     }
 
+    /**
+     * @return the timeout in seconds overriding the default of the batch file, <code>null</code> if the default applies
+     */
+    public Integer getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Same as {@link CommandInterpreter#perform(AbstractBuild, Launcher, hudson.model.TaskListener)}, but the batch file is taken from the {@link ScriptCache} of
+     * the execution host instead of a temporary file in the workspace.
+     */
+    @Override
+    public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException {
+        final WinBatchConfig buildStepConfig = getDescriptor().getBuildStepConfigById(getBuildStepId());
+        if (buildStepConfig == null) {
+            listener.getLogger().println(Messages.config_does_not_exist(getBuildStepId()));
+            return false;
+        }
+        final ScriptThrottle.Permit permit = ScriptThrottle.acquire(buildStepConfig.id, buildStepConfig.name, buildStepConfig.maxConcurrent,
+                buildStepConfig.fairQueue, listener);
+        try {
+            return perform(build, launcher, listener, buildStepConfig);
+        } finally {
+            permit.release();
+        }
+    }
+
+    private boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener, WinBatchConfig buildStepConfig)
+            throws InterruptedException {
+        final int timeoutSeconds = timeout != null ? timeout : buildStepConfig.timeout;
+        final long start = System.currentTimeMillis();
+        final ScriptMetrics.Sample sample = new ScriptMetrics.Sample();
+        FilePath ws = build.getWorkspace();
+        FilePath script;
+        try {
+            script = ScriptCache.stage(build, getContents(buildStepConfig), getFileExtension(), sample);
+            sample.lap(ScriptMetrics.Phase.STAGE);
+        } catch (IOException e) {
+            Util.displayIOException(e, listener);
+            e.printStackTrace(listener.fatalError("Cannot create temporary script for '" + getBuildStepId() + "'"));
+            return false;
+        }
+
+        int r = -1;
+        try {
+            EnvVars envVars = build.getEnvironment(listener);
+            // make the build variables available to the batch file too
+            for (Map.Entry<String, String> e : build.getBuildVariables().entrySet()) {
+                envVars.put(e.getKey(), e.getValue());
+            }
+            String[] cmds = buildCommandLine(script, MacroArgs.of(buildStepArgs).expand(build, listener));
+            sample.lap(ScriptMetrics.Phase.INTERPRETER);
+            Proc proc = launcher.launch().cmds(cmds).envs(envVars).stdout(listener).pwd(ws).start();
+            sample.lap(ScriptMetrics.Phase.SPAWN);
+            r = ProcessWatchdog.join(proc, timeoutSeconds);
+            sample.lap(ScriptMetrics.Phase.RUN);
+        } catch (ProcessWatchdog.TimeoutException e) {
+            final long held = System.currentTimeMillis() - start;
+            ScriptMetrics.get(getBuildStepId()).recordTimeout(held);
+            listener.error(e.getMessage() + ", executor freed after " + Util.getTimeSpanString(held));
+            r = -1;
+        } catch (IOException e) {
+            Util.displayIOException(e, listener);
+            e.printStackTrace(listener.fatalError("Caught exception while executing batch file '" + getBuildStepId() + "'"));
+            r = -1;
+        } catch (MacroEvaluationException e) {
+            listener.fatalError("Failed to expand the arguments of batch file '" + getBuildStepId() + "': " + e.getMessage());
+            r = -1;
+        } finally {
+            sample.lap(ScriptMetrics.Phase.CLEANUP);
+            ScriptMetrics.get(getBuildStepId()).record(sample, r);
+            listener.getLogger().println("managed batch file '" + buildStepConfig.name + "' " + sample);
+        }
+        return r == 0;
+    }
+
+    /**
+     * The command line with the arguments as they are, see {@link #perform(AbstractBuild, Launcher, BuildListener)} for the expanded ones.
+     */
     @Override
     public String[] buildCommandLine(FilePath script) {
+        return buildCommandLine(script, buildStepArgs);
+    }
+
+    private String[] buildCommandLine(FilePath script, String[] args) {
 
         List<String> cml = new ArrayList<String>();
         cml.add("cmd");
@@ -108,8 +210,8 @@ public class WinBatchBuildStep extends CommandInterpreter {
         cml.add(script.getRemote());
 
         // Add additional parameters set by user
-        if (buildStepArgs != null) {
-            for (String arg : buildStepArgs) {
+        if (args != null) {
+            for (String arg : args) {
                 cml.add(arg);
             }
         }
@@ -124,6 +226,10 @@ public class WinBatchBuildStep extends CommandInterpreter {
         if (buildStepConfig == null) {
             throw new IllegalStateException(Messages.config_does_not_exist(getBuildStepId()));
         }
+        return getContents(buildStepConfig);
+    }
+
+    private static String getContents(Config buildStepConfig) {
         return buildStepConfig.content + "\r\nexit %ERRORLEVEL%";
     }
 
@@ -145,6 +251,8 @@ public class WinBatchBuildStep extends CommandInterpreter {
     public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
         final Logger logger = Logger.getLogger(WinBatchBuildStep.class.getName());
 
+        private transient WinBatchConfig.WinBatchConfigProvider provider;
+
         /**
          * Enables this builder for all kinds of projects.
          */
@@ -167,13 +275,23 @@ public class WinBatchBuildStep extends CommandInterpreter {
          * @return A collection of batch files of type {@link WinBatchConfig}.
          */
         public Collection<Config> getAvailableBuildTemplates() {
-            List<Config> allConfigs = new ArrayList<Config>(getBuildStepConfigProvider().getAllConfigs());
-            Collections.sort(allConfigs, new Comparator<Config>() {
-                public int compare(Config o1, Config o2) {
-                    return o1.name.compareTo(o2.name);
-                }
-            });
-            return allConfigs;
+            return getBuildStepConfigProvider().getCatalog().getConfigsSortedByName();
+        }
+
+        /**
+         * Searches the config files (templates) for the script picker, see {@link ConfigCatalog#search(String, int, int)}.
+         *
+         * @param query
+         *            the text typed by the user
+         * @param offset
+         *            index of the first match to return
+         * @param limit
+         *            maximum number of matches to return
+         * @return one page of matches
+         */
+        @JavaScriptMethod
+        public JSONObject findBuildTemplates(String query, int offset, int limit) {
+            return getBuildStepConfigProvider().getCatalog().search(query, offset, limit);
         }
 
         /**
@@ -187,6 +305,17 @@ public class WinBatchBuildStep extends CommandInterpreter {
             return (WinBatchConfig) getBuildStepConfigProvider().getConfigById(id);
         }
 
+        /**
+         * Same as {@link #getBuildStepConfigById(String)}, but without loading the content of the config. Enough for everything but executing it.
+         *
+         * @param id
+         *            The Id of a config file.
+         * @return the config, its content might be <code>null</code>
+         */
+        public WinBatchConfig getBuildStepConfigMetadataById(String id) {
+            return (WinBatchConfig) getBuildStepConfigProvider().getCatalog().get(id);
+        }
+
         /**
          * gets the argument description to be displayed on the screen when selecting a config in the dropdown
          *
@@ -196,7 +325,10 @@ public class WinBatchBuildStep extends CommandInterpreter {
          */
         @JavaScriptMethod
         public String getArgsDescription(String configId) {
-            final WinBatchConfig config = getBuildStepConfigById(configId);
+            return getArgsDescription(getBuildStepConfigMetadataById(configId));
+        }
+
+        private String getArgsDescription(WinBatchConfig config) {
             if (config != null) {
                 if (config.args != null && !config.args.isEmpty()) {
                     StringBuilder sb = new StringBuilder("Required arguments: ");
@@ -218,10 +350,52 @@ public class WinBatchBuildStep extends CommandInterpreter {
 
         @JavaScriptMethod
         public List<Arg> getArgs(String configId) {
-            final WinBatchConfig config = getBuildStepConfigById(configId);
+            final WinBatchConfig config = getBuildStepConfigMetadataById(configId);
             return config.args;
         }
 
+        /**
+         * gets the argument description and the argument names of several configs at once, used to initialize all build steps of a config page with a
+         * single request
+         *
+         * @param configIds
+         *            the config ids to get the arguments for
+         * @return by config id: <code>{description: '...', args: [{name: '...'}]}</code>
+         */
+        @JavaScriptMethod
+        public JSONObject getArgsInfos(String[] configIds) {
+            final JSONObject infos = new JSONObject();
+            if (configIds != null) {
+                for (String configId : configIds) {
+                    if (configId == null || configId.length() == 0 || infos.has(configId)) {
+                        continue;
+                    }
+                    final WinBatchConfig config = getBuildStepConfigMetadataById(configId);
+                    final JSONArray args = new JSONArray();
+                    if (config != null && config.args != null) {
+                        for (Arg arg : config.args) {
+                            final JSONObject a = new JSONObject();
+                            a.put("name", arg.name);
+                            args.add(a);
+                        }
+                    }
+                    final JSONObject info = new JSONObject();
+                    info.put("description", getArgsDescription(config));
+                    info.put("args", args);
+                    infos.put(configId, info);
+                }
+            }
+            return infos;
+        }
+
+        /**
+         * validate the timeout override, a number of seconds
+         */
+        public FormValidation doCheckTimeout(@QueryParameter String value) {
+            final String timeout = Util.fixEmptyAndTrim(value);
+            return timeout == null ? FormValidation.ok() : FormValidation.validateNonNegativeInteger(timeout);
+        }
+
         /**
          * validate that an existing config was chosen
          *
@@ -230,7 +404,7 @@ public class WinBatchBuildStep extends CommandInterpreter {
          * @return
          */
         public FormValidation doCheckBuildStepId(@QueryParameter String buildStepId) {
-            final WinBatchConfig config = getBuildStepConfigById(buildStepId);
+            final WinBatchConfig config = getBuildStepConfigMetadataById(buildStepId);
             if (config != null) {
                 return FormValidation.ok();
             } else {
@@ -238,9 +412,12 @@ public class WinBatchBuildStep extends CommandInterpreter {
             }
         }
 
-        private ConfigProvider getBuildStepConfigProvider() {
-            ExtensionList<ConfigProvider> providers = ConfigProvider.all();
-            return providers.get(WinBatchConfig.WinBatchConfigProvider.class);
+        private WinBatchConfig.WinBatchConfigProvider getBuildStepConfigProvider() {
+            if (provider == null) {
+                ExtensionList<ConfigProvider> providers = ConfigProvider.all();
+                provider = providers.get(WinBatchConfig.WinBatchConfigProvider.class);
+            }
+            return provider;
         }
 
     }
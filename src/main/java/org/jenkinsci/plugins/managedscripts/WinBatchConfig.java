@@ -6,9 +6,9 @@ package org.jenkinsci.plugins.managedscripts;
 import hudson.Extension;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
-import org.jenkinsci.lib.configprovider.AbstractConfigProviderImpl;
 import org.jenkinsci.lib.configprovider.model.Config;
 import org.jenkinsci.lib.configprovider.model.ContentType;
 import org.kohsuke.stapler.DataBoundConstructor;
@@ -21,9 +21,35 @@ public class WinBatchConfig extends Config {
 
     public final List<Arg> args;
 
-    @DataBoundConstructor
+    /**
+     * default execution budget of the script in seconds, <code>0</code> for none
+     */
+    public final int timeout;
+
+    /**
+     * maximum number of executions of the batch file at the same time on all nodes, <code>0</code> for no limit, see {@link ScriptThrottle}
+     */
+    public final int maxConcurrent;
+
+    /**
+     * whether waiting executions get the permits in the order they asked for them
+     */
+    public final boolean fairQueue;
+
     public WinBatchConfig(String id, String name, String comment, String content, List<Arg> args) {
+        this(id, name, comment, content, args, 0);
+    }
+
+    public WinBatchConfig(String id, String name, String comment, String content, List<Arg> args, int timeout) {
+        this(id, name, comment, content, args, timeout, 0, false);
+    }
+
+    @DataBoundConstructor
+    public WinBatchConfig(String id, String name, String comment, String content, List<Arg> args, int timeout, int maxConcurrent, boolean fairQueue) {
         super(id, name, comment, content);
+        this.timeout = Math.max(0, timeout);
+        this.maxConcurrent = Math.max(0, maxConcurrent);
+        this.fairQueue = fairQueue;
 
         if (args != null) {
             List<Arg> filteredArgs = new ArrayList<WinBatchConfig.Arg>();
@@ -47,13 +73,27 @@ public class WinBatchConfig extends Config {
         }
     }
 
+    /**
+     * @return the build steps using this script, see {@link ScriptUsageIndex}
+     */
+    public List<ScriptUsageIndex.Usage> getUsages() {
+        final ScriptUsageIndex index = ScriptUsageIndex.get();
+        return index == null ? Collections.<ScriptUsageIndex.Usage> emptyList() : index.getUsages(id);
+    }
+
     @Extension(ordinal = 70)
-    public static class WinBatchConfigProvider extends AbstractConfigProviderImpl {
+    public static class WinBatchConfigProvider extends AbstractScriptConfigProvider {
 
         public WinBatchConfigProvider() {
             load();
         }
 
+        @Override
+        protected Config withContent(Config config, String content) {
+            final WinBatchConfig c = (WinBatchConfig) config;
+            return new WinBatchConfig(c.id, c.name, c.comment, content, c.args, c.timeout, c.maxConcurrent, c.fairQueue);
+        }
+
         @Override
         public ContentType getContentType() {
             return ContentType.DefinedType.HTML;
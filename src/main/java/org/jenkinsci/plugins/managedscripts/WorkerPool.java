@@ -0,0 +1,470 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.EnvVars;
+import hudson.util.ProcessTree;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TimerTask;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Warm interpreter processes on the execution host, for scripts with a slow starting interpreter (see {@link ScriptConfig#worker}).
+ * <p>
+ * A worker is the interpreter of the script running a small driver program ({@link Driver}), which reads one request per line on stdin (the script file,
+ * the arguments, the working directory and the environment as JSON), executes the script in the same process and answers with the output of the script
+ * followed by a marker with the exit code. The workers are pooled per interpreter line and recycled after a number of executions or when they were idle for
+ * too long. A worker is discarded if its script timed out, was aborted or terminated the interpreter.
+ * <p>
+ * Only lives on the execution host, the master sends a {@link Spec} with each execution.
+ */
+final class WorkerPool {
+
+    private static final Logger LOGGER = Logger.getLogger(WorkerPool.class.getName());
+
+    /**
+     * number of executions after which a worker is recycled
+     */
+    static int MAX_RUNS = Integer.getInteger(WorkerPool.class.getName() + ".maxRuns", 100);
+
+    /**
+     * seconds after which an idle worker is stopped
+     */
+    static int IDLE_TIMEOUT = Integer.getInteger(WorkerPool.class.getName() + ".idleTimeout", 300);
+
+    private static final String MARKER = "\u0000MSW:";
+
+    private static final Map<String, LinkedList<Worker>> IDLE = new HashMap<String, LinkedList<Worker>>();
+
+    private static final ExecutorService READERS = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r, "managed-scripts worker output");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private static boolean reaperScheduled;
+
+    private WorkerPool() {
+    }
+
+    /**
+     * The interpreters a worker driver is available for.
+     */
+    enum Driver {
+        PYTHON("driver.py", true), GROOVY("driver.groovy", false);
+
+        private final String resource;
+        private final boolean changesDirectory;
+        private byte[] source;
+
+        private Driver(String resource, boolean changesDirectory) {
+            this.resource = resource;
+            this.changesDirectory = changesDirectory;
+        }
+
+        /**
+         * @return the driver for the given interpreter line, <code>null</code> if the interpreter can't be used as a worker
+         */
+        static Driver forInterpreter(List<String> interpreter) {
+            if (interpreter == null) {
+                return null;
+            }
+            String program = ExecutionPlan.baseName(interpreter.get(0));
+            if (program.equals("env") && interpreter.size() > 1) {
+                program = ExecutionPlan.baseName(interpreter.get(1));
+            }
+            if (program.matches("python[0-9.]*")) {
+                return PYTHON;
+            }
+            if (program.equals("groovy")) {
+                return GROOVY;
+            }
+            return null;
+        }
+
+        /**
+         * Executed on the master: loads the source of the driver program.
+         */
+        synchronized byte[] getSource() throws IOException {
+            if (source == null) {
+                final InputStream in = WorkerPool.class.getResourceAsStream("WorkerPool/" + resource);
+                try {
+                    source = IOUtils.toByteArray(in);
+                } finally {
+                    in.close();
+                }
+            }
+            return source;
+        }
+    }
+
+    /**
+     * Everything the execution host needs to know to start and recycle workers.
+     */
+    static final class Spec implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final Driver driver;
+        final byte[] source;
+        final String hash;
+        final int maxRuns;
+        final int idleTimeout;
+
+        private Spec(Driver driver, byte[] source) {
+            this.driver = driver;
+            this.source = source;
+            this.hash = ScriptCache.hash(source);
+            this.maxRuns = MAX_RUNS;
+            this.idleTimeout = IDLE_TIMEOUT;
+        }
+
+        /**
+         * Executed on the master.
+         */
+        static Spec of(Driver driver) throws IOException {
+            return new Spec(driver, driver.getSource());
+        }
+    }
+
+    /**
+     * Executes a script with a (warm) worker.
+     *
+     * @param spec
+     *            the driver and recycling settings
+     * @param interpreter
+     *            the interpreter line
+     * @param cacheDir
+     *            the script cache directory, the driver program is placed there
+     * @param script
+     *            the staged script
+     * @param args
+     *            the expanded arguments
+     * @param env
+     *            the environment of the build, applied for the duration of the execution by drivers supporting it
+     * @param ws
+     *            the working directory
+     * @param out
+     *            gets the output of the script
+     * @param timeoutSeconds
+     *            the budget of the execution, <code>0</code> for none
+     * @param spawnMillis
+     *            gets the time it took to get a worker (index 0)
+     * @return the exit code of the script
+     * @throws ProcessWatchdog.TimeoutException
+     *             if the script exceeded its budget, the worker has been killed
+     */
+    static int execute(Spec spec, List<String> interpreter, File cacheDir, String script, String[] args, EnvVars env, File ws, final OutputStream out,
+            int timeoutSeconds, long[] spawnMillis) throws IOException, InterruptedException {
+        final long start = System.currentTimeMillis();
+        final Worker worker = borrow(spec, interpreter, cacheDir, ws);
+        spawnMillis[0] = System.currentTimeMillis() - start;
+
+        final String token = UUID.randomUUID().toString();
+        final Future<Integer> result;
+        try {
+            worker.send(request(token, script, args, env, ws));
+            result = READERS.submit(new Callable<Integer>() {
+                public Integer call() throws IOException, InterruptedException {
+                    return worker.read(token, out);
+                }
+            });
+        } catch (IOException e) {
+            worker.kill();
+            throw e;
+        }
+
+        boolean reusable = false;
+        try {
+            final Integer r = timeoutSeconds > 0 ? result.get(timeoutSeconds, TimeUnit.SECONDS) : result.get();
+            reusable = r != null;
+            return r != null ? r : worker.exitCode();
+        } catch (TimeoutException e) {
+            throw new ProcessWatchdog.TimeoutException(timeoutSeconds);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException("Worker failed: " + cause, cause);
+        } finally {
+            if (reusable) {
+                release(worker);
+            } else {
+                // killing the worker also ends the output reader
+                worker.kill();
+            }
+        }
+    }
+
+    private static Worker borrow(Spec spec, List<String> interpreter, File cacheDir, File ws) throws IOException {
+        final StringBuilder key = new StringBuilder(spec.driver.name());
+        for (String element : interpreter) {
+            key.append('\u0000').append(element);
+        }
+        if (!spec.driver.changesDirectory) {
+            // the driver can't change the working directory of the interpreter, so the workers are bound to a workspace
+            key.append('\u0000').append(ws.getAbsolutePath());
+        }
+        synchronized (IDLE) {
+            final LinkedList<Worker> idle = IDLE.get(key.toString());
+            while (idle != null && !idle.isEmpty()) {
+                final Worker worker = idle.removeFirst();
+                if (worker.isAlive()) {
+                    return worker;
+                }
+                worker.kill();
+            }
+        }
+
+        final List<String> cmds = new ArrayList<String>(interpreter);
+        cmds.add(stageDriver(spec, cacheDir).getAbsolutePath());
+        LOGGER.log(Level.FINE, "Starting worker " + cmds);
+        final ProcessBuilder pb = new ProcessBuilder(cmds).directory(ws).redirectErrorStream(true);
+        return new Worker(key.toString(), spec, pb.start());
+    }
+
+    private static void release(Worker worker) {
+        worker.runs++;
+        if (worker.runs >= worker.spec.maxRuns) {
+            LOGGER.log(Level.FINE, "Recycling worker after " + worker.runs + " executions");
+            worker.kill();
+            return;
+        }
+        worker.idleSince = System.currentTimeMillis();
+        synchronized (IDLE) {
+            LinkedList<Worker> idle = IDLE.get(worker.key);
+            if (idle == null) {
+                idle = new LinkedList<Worker>();
+                IDLE.put(worker.key, idle);
+            }
+            idle.addFirst(worker);
+            if (!reaperScheduled) {
+                reaperScheduled = true;
+                ProcessWatchdog.schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        reap();
+                    }
+                }, 10 * 1000L);
+            }
+        }
+    }
+
+    /**
+     * Stops the workers idle for longer than their timeout.
+     */
+    private static void reap() {
+        final List<Worker> expired = new ArrayList<Worker>();
+        final long now = System.currentTimeMillis();
+        synchronized (IDLE) {
+            for (Iterator<LinkedList<Worker>> pools = IDLE.values().iterator(); pools.hasNext();) {
+                final LinkedList<Worker> idle = pools.next();
+                for (Iterator<Worker> workers = idle.iterator(); workers.hasNext();) {
+                    final Worker worker = workers.next();
+                    if (now - worker.idleSince >= worker.spec.idleTimeout * 1000L || !worker.isAlive()) {
+                        workers.remove();
+                        expired.add(worker);
+                    }
+                }
+                if (idle.isEmpty()) {
+                    pools.remove();
+                }
+            }
+        }
+        for (Worker worker : expired) {
+            worker.kill();
+        }
+    }
+
+    private static File stageDriver(Spec spec, File cacheDir) throws IOException {
+        final File driver = new File(cacheDir, "worker-" + spec.hash + spec.driver.resource.substring(spec.driver.resource.lastIndexOf('.')));
+        if (!driver.isFile()) {
+            cacheDir.mkdirs();
+            final File tmp = File.createTempFile("worker", ".tmp", cacheDir);
+            final OutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(spec.source);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(driver) && !driver.isFile()) {
+                tmp.delete();
+                throw new IOException("Failed to create " + driver);
+            }
+            tmp.delete();
+        }
+        return driver;
+    }
+
+    static String request(String token, String script, String[] args, EnvVars env, File ws) {
+        final StringBuilder json = new StringBuilder("{\"token\":").append(quote(token));
+        json.append(",\"script\":").append(quote(script));
+        json.append(",\"cwd\":").append(quote(ws.getAbsolutePath()));
+        json.append(",\"args\":[");
+        for (int i = 0; i < args.length; i++) {
+            json.append(i == 0 ? "" : ",").append(quote(args[i]));
+        }
+        json.append("],\"env\":{");
+        boolean first = true;
+        for (Map.Entry<String, String> e : env.entrySet()) {
+            json.append(first ? "" : ",").append(quote(e.getKey())).append(':').append(quote(e.getValue()));
+            first = false;
+        }
+        return json.append("}}\n").toString();
+    }
+
+    private static String quote(String s) {
+        final StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * One interpreter process running a driver.
+     */
+    private static final class Worker {
+        final String key;
+        final Spec spec;
+        final Process process;
+        final InputStream stdout;
+        final Writer stdin;
+        int runs;
+        long idleSince;
+
+        Worker(String key, Spec spec, Process process) throws IOException {
+            this.key = key;
+            this.spec = spec;
+            this.process = process;
+            this.stdout = new BufferedInputStream(process.getInputStream());
+            this.stdin = new OutputStreamWriter(process.getOutputStream(), "UTF-8");
+        }
+
+        void send(String request) throws IOException {
+            stdin.write(request);
+            stdin.flush();
+        }
+
+        /**
+         * Forwards the output of the current script until the marker with the given token.
+         *
+         * @return the exit code of the script, <code>null</code> if the worker terminated before the script finished
+         */
+        Integer read(String token, OutputStream out) throws IOException {
+            final byte[] marker = (MARKER + token + ":").getBytes("UTF-8");
+            final byte[] buffer = new byte[8192];
+            int matched = 0;
+            int n;
+            stdout.mark(buffer.length);
+            while ((n = stdout.read(buffer)) >= 0) {
+                // bytes before start are forwarded, the bytes of a partial match are kept in the marker (it may span chunks)
+                int start = 0;
+                for (int i = 0; i < n; i++) {
+                    if (buffer[i] == marker[matched]) {
+                        if (matched == 0) {
+                            out.write(buffer, start, i - start);
+                        }
+                        start = i + 1;
+                        if (++matched == marker.length) {
+                            out.flush();
+                            // the rest of the chunk is the exit code (and the output of the next script)
+                            stdout.reset();
+                            long skip = start;
+                            while (skip > 0) {
+                                skip -= stdout.skip(skip);
+                            }
+                            return readExitCode();
+                        }
+                        continue;
+                    }
+                    if (matched > 0) {
+                        // the marker starts with a NUL which does not occur again in it, the current byte can only start a new match
+                        out.write(marker, 0, matched);
+                        start = i;
+                        matched = 0;
+                        if (buffer[i] == marker[0]) {
+                            matched = 1;
+                            start = i + 1;
+                        }
+                    }
+                }
+                if (matched == 0) {
+                    out.write(buffer, start, n - start);
+                }
+                out.flush();
+                stdout.mark(buffer.length);
+            }
+            out.write(marker, 0, matched);
+            out.flush();
+            return null;
+        }
+
+        private Integer readExitCode() throws IOException {
+            final StringBuilder code = new StringBuilder();
+            int b;
+            while ((b = stdout.read()) >= 0 && b != '\n') {
+                code.append((char) b);
+            }
+            try {
+                return Integer.valueOf(code.toString().trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid answer of worker: " + code);
+            }
+        }
+
+        boolean isAlive() {
+            try {
+                process.exitValue();
+                return false;
+            } catch (IllegalThreadStateException e) {
+                return true;
+            }
+        }
+
+        int exitCode() throws InterruptedException {
+            return process.waitFor();
+        }
+
+        void kill() {
+            try {
+                ProcessTree.get().get(process).killRecursively();
+            } catch (Exception e) {
+                LOGGER.log(Level.FINE, "Failed to kill worker process tree", e);
+            }
+            process.destroy();
+            IOUtils.closeQuietly(stdin);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+// Worker driver of the managed scripts plugin, see WorkerPool.java.
+// Reads one JSON request per line on stdin, executes the script in this interpreter and
+// answers with the output of the script followed by NUL "MSW:<token>:<exit code>".
+// The working directory and the environment of the process can't be changed, the
+// environment of the build is available to the script as the variable 'env'.
+import groovy.json.JsonSlurper
+
+def requests = new BufferedReader(new InputStreamReader(System.in, 'UTF-8'))
+def out = System.out
+System.err = out
+// the requests arrive on stdin, the scripts get an empty stream instead
+def empty = { new ByteArrayInputStream(new byte[0]) }
+System.setIn(empty())
+
+String line
+while ((line = requests.readLine()) != null) {
+    def request = new JsonSlurper().parseText(line)
+    int code = 0
+    try {
+        def binding = new Binding()
+        binding.setVariable('env', request.env)
+        new GroovyShell(binding).run(new File(request.script), request.args as String[])
+    } catch (Throwable t) {
+        t.printStackTrace(out)
+        code = 1
+    } finally {
+        System.out = out
+        System.err = out
+        System.setIn(empty())
+    }
+    out.flush()
+    out.print("\u0000MSW:${request.token}:${code}\n")
+    out.flush()
+}
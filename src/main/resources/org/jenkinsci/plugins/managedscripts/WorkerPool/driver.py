@@ -0,0 +1,59 @@
+# Worker driver of the managed scripts plugin, see WorkerPool.java.
+# Reads one JSON request per line on stdin, executes the script in this interpreter and
+# answers with the output of the script followed by NUL "MSW:<token>:<exit code>".
+import json
+import os
+import runpy
+import sys
+import traceback
+
+out = sys.stdout
+# the requests arrive on stdin, the scripts (and the processes they start) get /dev/null instead
+requests = os.fdopen(os.dup(0), 'r')
+null = os.open(os.devnull, os.O_RDONLY)
+os.dup2(null, 0)
+os.close(null)
+initial_env = dict(os.environ)
+initial_path = list(sys.path)
+
+
+def run(request):
+    os.environ.clear()
+    os.environ.update(request['env'])
+    os.chdir(request['cwd'])
+    sys.argv = [request['script']] + request['args']
+    sys.path = [os.path.dirname(request['script'])] + initial_path
+    sys.stdout = sys.stderr = out
+    sys.stdin = sys.__stdin__
+    try:
+        runpy.run_path(request['script'], run_name='__main__')
+        return 0
+    except SystemExit as e:
+        if e.code is None:
+            return 0
+        if isinstance(e.code, int):
+            return e.code
+        out.write('%s\n' % (e.code,))
+        return 1
+    except BaseException:
+        traceback.print_exc(file=out)
+        return 1
+    finally:
+        sys.stdout = sys.stderr = out
+        os.environ.clear()
+        os.environ.update(initial_env)
+        sys.path = list(initial_path)
+        # modules of the workspace or the script directory may change, installed modules stay warm
+        local = (os.path.realpath(request['cwd']), os.path.realpath(os.path.dirname(request['script'])))
+        for name, module in list(sys.modules.items()):
+            path = getattr(module, '__file__', None)
+            if path and os.path.realpath(path).startswith(local):
+                del sys.modules[name]
+
+
+for line in iter(requests.readline, ''):
+    request = json.loads(line)
+    code = run(request)
+    out.flush()
+    out.write('\0MSW:%s:%d\n' % (request['token'], code))
+    out.flush()
@@ -1,63 +1,241 @@
 
-function ms_initDetailLink(rootURL, referenceTag){
-   var selId = referenceTag.value;
-   var all = new Array();
-   all = document.getElementsByName('buildStepId');
+/**
+ * the script ids of the pickers of the Script and WinBatch steps, these have a details link, an argument description and argument names
+ *
+ * @param descriptorName only the pickers bound to this descriptor variable, all if not given
+ */
+function ms_stepTags(descriptorName){
+   var all = document.getElementsByName('buildStepId');
+   var tags = [];
    for(var i = 0; i < all.length; i++) {
-	   if(referenceTag == all.item(i)){
-		   var detailsLinkTag = document.getElementsByName('showDetailLink').item(i);
-		   if(selId.length != 0){
-			   detailsLinkTag .href=rootURL+"/configfiles/show?id=".concat(selId);
-			   detailsLinkTag .style.display = 'block';
-			}else{
-			   detailsLinkTag .style.display = 'none';
-			}
-	   }
+       var picker = all.item(i).parentNode;
+       if(picker.getAttribute('data-args') && (!descriptorName || picker.getAttribute('data-descriptor') == descriptorName)){
+           tags.push(all.item(i));
+       }
    }
+   return tags;
 }
 
+/**
+ * the descriptor bound by the config page of the step the given picker (or script id) belongs to
+ */
+function ms_descriptorOf(tag){
+    var picker = tag.className == 'ms-picker' ? tag : tag.parentNode;
+    return window[picker.getAttribute('data-descriptor')];
+}
 
-function ms_descArguments(referenceTag, desc){
-   var all = new Array();
-   all = document.getElementsByName('buildStepId');
-   for(var i = 0; i < all.length; i++) {
-	   if(referenceTag == all.item(i)){
-		   var descriptionTag = document.getElementsByName('argumentDescription').item(i);
-		   descriptionTag.innerHTML = desc;
-	   }
+/**
+ * @param all the script ids of all pickers as returned by ms_stepTags(), collected again if not given
+ */
+function ms_initDetailLink(rootURL, referenceTag, all){
+   var selId = referenceTag.value;
+   var i = (all || ms_stepTags()).indexOf(referenceTag);
+   if(i < 0){
+       return;
+   }
+   var detailsLinkTag = document.getElementsByName('showDetailLink').item(i);
+   if(selId.length != 0){
+       detailsLinkTag.href = rootURL+"/configfiles/show?id=".concat(selId);
+       detailsLinkTag.style.display = 'block';
+   }else{
+       detailsLinkTag.style.display = 'none';
+   }
+}
+
+/**
+ * loads the argument description and names for all the given build steps with a single request per kind of step
+ */
+function ms_loadParams(referenceTags){
+    var groups = {};
+    for(var i = 0; i < referenceTags.length; i++) {
+        var name = referenceTags[i].parentNode.getAttribute('data-descriptor');
+        if(!groups[name]){
+            groups[name] = [];
+        }
+        groups[name].push(referenceTags[i]);
+    }
+    for(var name in groups){
+        ms_loadParamsOf(window[name], groups[name]);
     }
 }
 
-function ms_showParams(referenceTag, scriptId){
-    desc.getArgsDescription(scriptId, function(t) {
-      ms_descArguments(referenceTag, t.responseObject());
+function ms_loadParamsOf(descriptor, referenceTags){
+    var ids = [];
+    for(var i = 0; i < referenceTags.length; i++) {
+        var id = referenceTags[i].value;
+        if(id.length != 0 && ids.indexOf(id) < 0){
+            ids.push(id);
+        }
+    }
+    if(ids.length == 0){
+        var all = ms_stepTags();
+        for(var i = 0; i < referenceTags.length; i++) {
+            ms_applyParams(all, referenceTags[i], null);
+        }
+        return;
+    }
+    descriptor.getArgsInfos(ids, function(t) {
+        var infos = t.responseObject();
+        var all = ms_stepTags();
+        for(var i = 0; i < referenceTags.length; i++) {
+            ms_applyParams(all, referenceTags[i], infos[referenceTags[i].value]);
+        }
     });
-    ms_getArgs(referenceTag,scriptId);
 }
 
-function ms_getArgs(referenceTag, scriptId){
-    desc.getArgs(scriptId,function(t){
-        referenceTag.args = JSON.parse(t.responseText);
-        ms_labelArgs(referenceTag);
-    });
+function ms_applyParams(all, referenceTag, info){
+    var i = all.indexOf(referenceTag);
+    if(i < 0){
+        return;
+    }
+    document.getElementsByName('argumentDescription').item(i).innerHTML = info ? info.description : 'please select a script!';
+    referenceTag.args = info ? info.args : [];
+    ms_labelArgsAt(all, i);
 }
 
-function ms_labelArgs(referenceTag)
+function ms_labelArgs()
 {
-    var all = new Array();
-    all = document.getElementsByName('buildStepId');
+    var all = ms_stepTags();
     for(var i = 0; i < all.length; i++)
     {
-        if(!referenceTag || referenceTag === all.item(i))
-        {
-            var args = all.item(i).args;
-            var parent = document.getElementsByName('scriptBuildStepArgs').item(i);
-            var argNameDivs = parent.querySelectorAll('[name=argName]');
-            for (var j=0; j < argNameDivs.length; j++)
-            {
-                argNameDivs[j].innerHTML = args[j].name;
-            }
+        ms_labelArgsAt(all, i);
+    }
+}
+
+/**
+ * @param all the script ids of all pickers as returned by ms_stepTags()
+ * @param i the index of the picker to label the arguments of
+ */
+function ms_labelArgsAt(all, i)
+{
+    var referenceTag = all[i];
+    if(!referenceTag){
+        return;
+    }
+    var args = referenceTag.args || [];
+    var parent = document.getElementsByName('scriptBuildStepArgs').item(i);
+    var argNameDivs = parent.querySelectorAll('[name=argName]');
+    for (var j=0; j < argNameDivs.length; j++)
+    {
+        argNameDivs[j].innerHTML = j < args.length ? args[j].name : '&nbsp;';
+    }
+}
+
+var MS_PAGE_SIZE = 25;
+
+function ms_search(filterTag, event){
+    if(event && (event.keyCode == 13 || event.keyCode == 27 || event.keyCode == 9)){
+        return;
+    }
+    var picker = filterTag.parentNode;
+    var query = filterTag.value;
+    if(picker.ms_query === query && picker.ms_timer){
+        return;
+    }
+    clearTimeout(picker.ms_timer);
+    picker.ms_timer = setTimeout(function(){
+        picker.ms_query = query;
+        ms_loadMatches(picker, query, 0);
+    }, 250);
+}
+
+function ms_loadMatches(picker, query, offset){
+    ms_descriptorOf(picker).findBuildTemplates(query, offset, MS_PAGE_SIZE, function(t) {
+        if(picker.ms_query !== query){
+            return; // the user typed on in the meantime
         }
+        ms_renderMatches(picker, query, t.responseObject());
+    });
+}
+
+function ms_renderMatches(picker, query, result){
+    var matchesTag = picker.querySelector('.ms-picker-matches');
+    if(result.offset == 0){
+        matchesTag.innerHTML = '';
+    }
+    var more = matchesTag.querySelector('.ms-picker-more');
+    if(more){
+        matchesTag.removeChild(more);
+    }
+    for(var i = 0; i < result.items.length; i++){
+        var item = result.items[i];
+        var label = item.name + ' - ' + item.comment;
+        var matchTag = document.createElement('div');
+        matchTag.className = 'ms-picker-match';
+        matchTag.style.cursor = 'pointer';
+        matchTag.appendChild(document.createTextNode(label));
+        matchTag.onmousedown = ms_selectHandler(picker, item.id, label);
+        matchesTag.appendChild(matchTag);
     }
+    var shown = result.offset + result.items.length;
+    if(shown < result.total){
+        more = document.createElement('div');
+        more.className = 'ms-picker-more';
+        more.style.cursor = 'pointer';
+        more.style.fontStyle = 'italic';
+        more.appendChild(document.createTextNode((result.total - shown) + ' more...'));
+        more.onmousedown = function(){
+            ms_loadMatches(picker, query, shown);
+            return false;
+        };
+        matchesTag.appendChild(more);
+    }
+    if(result.total == 0){
+        matchesTag.appendChild(document.createTextNode('no matching script'));
+    }
+    matchesTag.style.display = 'block';
 }
 
+function ms_selectHandler(picker, id, label){
+    return function(){
+        ms_select(picker, id, label);
+    };
+}
+
+function ms_select(picker, id, label){
+    var idTag = picker.querySelector('input[name=buildStepId]');
+    var filterTag = picker.querySelector('.ms-picker-filter');
+    idTag.value = id;
+    filterTag.value = label;
+    picker.ms_label = label;
+    picker.ms_query = label;
+    picker.querySelector('.ms-picker-matches').style.display = 'none';
+    if(picker.getAttribute('data-args')){
+        ms_initDetailLink(picker.getAttribute('rootURL'), idTag);
+        ms_loadParams([idTag]);
+    }
+}
+
+function ms_pickerKeyDown(filterTag, event){
+    var picker = filterTag.parentNode;
+    if(event.keyCode == 13){
+        // don't submit the form, pick the first match instead
+        var first = picker.querySelector('.ms-picker-match');
+        if(first && picker.querySelector('.ms-picker-matches').style.display != 'none'){
+            first.onmousedown();
+        }
+        return false;
+    }
+    if(event.keyCode == 27){
+        ms_hideMatches(filterTag);
+    }
+    return true;
+}
+
+function ms_hideMatches(filterTag){
+    var picker = filterTag.parentNode;
+    clearTimeout(picker.ms_timer);
+    picker.ms_timer = null;
+    picker.querySelector('.ms-picker-matches').style.display = 'none';
+    if(filterTag.value.length == 0){
+        // an empty filter clears the selection
+        ms_select(picker, '', '');
+        return;
+    }
+    // a filter left without picking a match shows the selected script again, which is what gets saved
+    var label = picker.ms_label !== undefined ? picker.ms_label : filterTag.defaultValue;
+    if(filterTag.value != label){
+        filterTag.value = label;
+        picker.ms_query = label;
+    }
+}
@@ -0,0 +1,147 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import hudson.model.Failure;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.jenkinsci.lib.configprovider.ConfigProvider;
+import org.jenkinsci.plugins.managedscripts.ScriptConfig.ScriptConfigProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * The migration between the single file of older versions (<code>buildstep-config-files.xml</code>) and one file per config
+ * (<code>buildstep-config-files/</code>).
+ */
+public class AbstractScriptConfigProviderTest {
+
+    private static final String ONE = "ScriptConfigProvider.1";
+    private static final String TWO = "ScriptConfigProvider.2";
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private ScriptConfigProvider provider;
+    private File legacy;
+    private File dir;
+
+    @Before
+    public void setUp() {
+        provider = j.jenkins.getExtensionList(ConfigProvider.class).get(ScriptConfigProvider.class);
+        legacy = new File(j.jenkins.getRootDir(), "buildstep-config-files.xml");
+        dir = new File(j.jenkins.getRootDir(), "buildstep-config-files");
+    }
+
+    @After
+    public void tearDown() {
+        AbstractScriptConfigProvider.SINGLE_FILE = false;
+    }
+
+    private void save(String id, String content) {
+        provider.save(new ScriptConfig(id, id, "", content, null));
+    }
+
+    private String content(String id) {
+        return provider.getConfigById(id).content;
+    }
+
+    @Test
+    public void migrate() throws Exception {
+        AbstractScriptConfigProvider.SINGLE_FILE = true;
+        save(ONE, "echo one");
+        save(TWO, "echo two");
+        assertTrue(legacy.isFile());
+        assertFalse(dir.exists());
+
+        AbstractScriptConfigProvider.SINGLE_FILE = false;
+        provider.load();
+        assertTrue(new File(dir, ONE + ".xml").isFile());
+        assertTrue(new File(dir, TWO + ".xml").isFile());
+        assertFalse(legacy.exists());
+        assertTrue(new File(legacy.getPath() + ".migrated").isFile());
+        assertEquals(2, provider.getAllConfigs().size());
+        assertEquals("echo one", content(ONE));
+        assertEquals("echo two", content(TWO));
+
+        // from now on saving only writes the file of the config
+        save(ONE, "echo changed");
+        assertFalse(legacy.exists());
+        provider.load();
+        assertEquals("echo changed", content(ONE));
+    }
+
+    @Test
+    public void unmigrate() throws Exception {
+        save(ONE, "echo one");
+        save(TWO, "echo two");
+        assertTrue(new File(dir, ONE + ".xml").isFile());
+        assertFalse(legacy.exists());
+
+        AbstractScriptConfigProvider.SINGLE_FILE = true;
+        provider.load();
+        assertTrue(legacy.isFile());
+        assertFalse(dir.exists());
+        assertTrue(new File(dir.getPath() + ".migrated").isDirectory());
+        assertEquals("echo one", content(ONE));
+        assertEquals("echo two", content(TWO));
+
+        // and back again, the files of the renamed directory are not used
+        save(TWO, "echo changed");
+        AbstractScriptConfigProvider.SINGLE_FILE = false;
+        provider.load();
+        assertFalse(legacy.exists());
+        assertEquals("echo one", content(ONE));
+        assertEquals("echo changed", content(TWO));
+    }
+
+    @Test
+    public void failedMigrationKeepsTheSingleFile() throws Exception {
+        AbstractScriptConfigProvider.SINGLE_FILE = true;
+        save(ONE, "echo one");
+        AbstractScriptConfigProvider.SINGLE_FILE = false;
+        // the directory for the config files can't be created
+        FileUtils.writeStringToFile(dir, "in the way");
+
+        provider.load();
+        assertTrue(legacy.isFile());
+        assertFalse(new File(legacy.getPath() + ".migrated").exists());
+        assertEquals("echo one", content(ONE));
+
+        // until the next start new versions still go to the single file
+        save(TWO, "echo two");
+        assertTrue(FileUtils.readFileToString(legacy).contains(TWO));
+        assertEquals("echo two", content(TWO));
+    }
+
+    @Test
+    public void failedSaveKeepsThePreviousVersion() throws Exception {
+        save(ONE, "echo one");
+        FileUtils.deleteDirectory(dir);
+        FileUtils.writeStringToFile(dir, "in the way");
+
+        try {
+            save(ONE, "echo changed");
+            fail("saved without a directory to write to");
+        } catch (Failure e) {
+            // expected
+        }
+        try {
+            save(TWO, "echo two");
+            fail("saved without a directory to write to");
+        } catch (Failure e) {
+            // expected
+        }
+        assertEquals("echo one", content(ONE));
+        assertNull(provider.getCatalog().get(TWO));
+    }
+}
@@ -0,0 +1,120 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.jenkinsci.lib.configprovider.model.Config;
+import org.junit.Test;
+
+public class ConfigCatalogTest {
+
+    private static Config config(String id, String name, String comment) {
+        return new ScriptConfig(id, name, comment, "echo " + id, null);
+    }
+
+    private static List<String> ids(List<Config> configs) {
+        final List<String> ids = new ArrayList<String>();
+        for (Config config : configs) {
+            ids.add(config.id);
+        }
+        return ids;
+    }
+
+    private static List<String> ids(JSONObject page) {
+        final List<String> ids = new ArrayList<String>();
+        final JSONArray items = page.getJSONArray("items");
+        for (int i = 0; i < items.size(); i++) {
+            ids.add(items.getJSONObject(i).getString("id"));
+        }
+        return ids;
+    }
+
+    private static ConfigCatalog sample() {
+        return ConfigCatalog.of(Arrays.asList(config("1", "deploy app", "pushes to production"), config("2", "Build", "compiles everything"),
+                config("3", "app tests", "runs the suite"), config("4", "cleanup", "removes old apps")));
+    }
+
+    /**
+     * configs named "script 000", "script 001", ... in reverse order
+     */
+    private static ConfigCatalog numbered(int count) {
+        final List<Config> configs = new ArrayList<Config>();
+        for (int i = count - 1; i >= 0; i--) {
+            configs.add(config(String.valueOf(i), String.format("script %03d", i), null));
+        }
+        return ConfigCatalog.of(configs);
+    }
+
+    @Test
+    public void lookup() {
+        final ConfigCatalog catalog = sample();
+        assertEquals("app tests", catalog.get("3").name);
+        assertNull(catalog.get("5"));
+        assertNull(catalog.get(null));
+        assertEquals(4, catalog.size());
+        assertSame(ConfigCatalog.EMPTY, ConfigCatalog.of(Collections.<Config> emptyList()));
+    }
+
+    @Test
+    public void emptyQueryReturnsAllByName() {
+        final ConfigCatalog catalog = sample();
+        assertEquals(Arrays.asList("2", "3", "4", "1"), ids(catalog.getConfigsSortedByName()));
+        assertEquals(Arrays.asList("2", "3", "4", "1"), ids(catalog.find(null)));
+        assertEquals(Arrays.asList("2", "3", "4", "1"), ids(catalog.find("  ")));
+    }
+
+    @Test
+    public void prefixMatchesComeFirst() {
+        final ConfigCatalog catalog = sample();
+        // "app tests" by its name prefix, then by name: "cleanup" (comment) and "deploy app" (name)
+        assertEquals(Arrays.asList("3", "4", "1"), ids(catalog.find("app")));
+        assertEquals(Arrays.asList("3", "4", "1"), ids(catalog.find(" APP ")));
+        assertEquals(Arrays.asList("2"), ids(catalog.find("build")));
+        assertEquals(Arrays.asList("1"), ids(catalog.find("production")));
+        assertTrue(catalog.find("nothing like this").isEmpty());
+    }
+
+    @Test
+    public void pages() {
+        final ConfigCatalog catalog = numbered(150);
+
+        JSONObject page = catalog.search("script", 0, 10);
+        assertEquals(150, page.getInt("total"));
+        assertEquals(0, page.getInt("offset"));
+        assertEquals(Arrays.asList("0", "1", "2", "3", "4", "5", "6", "7", "8", "9"), ids(page));
+
+        page = catalog.search("script", 145, 10);
+        assertEquals(145, page.getInt("offset"));
+        assertEquals(Arrays.asList("145", "146", "147", "148", "149"), ids(page));
+
+        page = catalog.search("script 01", 5, 3);
+        assertEquals(10, page.getInt("total"));
+        assertEquals(Arrays.asList("15", "16", "17"), ids(page));
+    }
+
+    @Test
+    public void pageBoundsAreClamped() {
+        final ConfigCatalog catalog = numbered(150);
+
+        JSONObject page = catalog.search(null, 500, 10);
+        assertEquals(150, page.getInt("offset"));
+        assertEquals(0, page.getJSONArray("items").size());
+
+        page = catalog.search(null, -5, 2);
+        assertEquals(0, page.getInt("offset"));
+        assertEquals(Arrays.asList("0", "1"), ids(page));
+
+        assertEquals(1, catalog.search(null, 0, 0).getJSONArray("items").size());
+        assertEquals(ConfigCatalog.MAX_PAGE_SIZE, catalog.search(null, 0, 1000).getJSONArray("items").size());
+    }
+}
@@ -0,0 +1,46 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class ExecutionPlanTest {
+
+    @Test
+    public void interpreterLineWithLf() {
+        assertEquals(Arrays.asList("/bin/bash", "-e"), ExecutionPlan.parseInterpreterLine("#!/bin/bash -e\necho hello\n"));
+    }
+
+    @Test
+    public void interpreterLineWithCrLf() {
+        assertEquals(Arrays.asList("/bin/bash", "-e"), ExecutionPlan.parseInterpreterLine("#!/bin/bash -e\r\necho hello\r\n"));
+        assertEquals(Arrays.asList("/usr/bin/python"), ExecutionPlan.parseInterpreterLine("#!/usr/bin/python\r\nprint('hello')"));
+    }
+
+    @Test
+    public void interpreterLineWithoutTrailingNewline() {
+        assertEquals(Arrays.asList("/bin/sh"), ExecutionPlan.parseInterpreterLine("#!/bin/sh"));
+        assertEquals(Arrays.asList("/usr/bin/perl", "-w"), ExecutionPlan.parseInterpreterLine("#!  /usr/bin/perl   -w  "));
+    }
+
+    @Test
+    public void interpreterLineWithEnvSplitString() {
+        // the arguments after env -S are kept as separate elements, in order
+        assertEquals(Arrays.asList("/usr/bin/env", "-S", "python3", "-u", "-X", "dev"),
+                ExecutionPlan.parseInterpreterLine("#!/usr/bin/env -S python3 -u -X dev\nprint('hello')\n"));
+        assertEquals(Arrays.asList("/usr/bin/env", "-S", "bash", "-e"), ExecutionPlan.parseInterpreterLine("#!/usr/bin/env -S bash\t-e\r\n"));
+    }
+
+    @Test
+    public void noInterpreterLine() {
+        assertNull(ExecutionPlan.parseInterpreterLine(null));
+        assertNull(ExecutionPlan.parseInterpreterLine(""));
+        assertNull(ExecutionPlan.parseInterpreterLine("echo hello\n"));
+        assertNull(ExecutionPlan.parseInterpreterLine(" #!/bin/sh\n"));
+        assertNull(ExecutionPlan.parseInterpreterLine("#!\necho hello\n"));
+        assertNull(ExecutionPlan.parseInterpreterLine("#!  \r\necho hello\r\n"));
+    }
+}
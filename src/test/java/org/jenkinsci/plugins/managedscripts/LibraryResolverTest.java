@@ -0,0 +1,91 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import hudson.AbortException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jenkinsci.lib.configprovider.ConfigProvider;
+import org.jenkinsci.plugins.managedscripts.LibraryConfig.LibraryConfigProvider;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class LibraryResolverTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private LibraryConfigProvider provider;
+
+    @Before
+    public void setUp() {
+        provider = j.jenkins.getExtensionList(ConfigProvider.class).get(LibraryConfigProvider.class);
+    }
+
+    private void library(String id, String includes) {
+        provider.save(new LibraryConfig(id, id + ".sh", "", "# " + id, includes));
+    }
+
+    private List<String> resolve(String... ids) throws AbortException {
+        final List<String> resolved = new ArrayList<String>();
+        for (LibraryConfig library : new LibraryResolver(provider).resolve(Arrays.asList(ids))) {
+            resolved.add(library.id);
+        }
+        return resolved;
+    }
+
+    private void assertRejected(String expectedMessagePart, String... ids) {
+        try {
+            fail("resolved " + resolve(ids));
+        } catch (AbortException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(expectedMessagePart));
+        }
+    }
+
+    @Test
+    public void includesComeFirst() throws Exception {
+        library("a", "b, c");
+        library("b", "c");
+        library("c", null);
+        assertEquals(Arrays.asList("c", "b", "a"), resolve("a"));
+        // shared includes are listed once
+        assertEquals(Arrays.asList("c", "b", "a"), resolve("b", "a", "c"));
+    }
+
+    @Test
+    public void cycle() {
+        library("x", "y");
+        library("y", "z");
+        library("z", "x");
+        assertRejected("x -> y -> z -> x", "x");
+        assertRejected("y -> z -> x -> y", "y");
+    }
+
+    @Test
+    public void cycleBelowTheIncludedLibrary() {
+        library("top", "loop1");
+        library("loop1", "loop2");
+        library("loop2", "loop1");
+        assertRejected("loop1 -> loop2 -> loop1", "top");
+    }
+
+    @Test
+    public void selfInclude() {
+        library("self", "self");
+        assertRejected("self -> self", "self");
+    }
+
+    @Test
+    public void missingInclude() {
+        library("m", "nope");
+        assertRejected("[nope], included by [m]", "m");
+        assertRejected("[nope]", "nope");
+    }
+}
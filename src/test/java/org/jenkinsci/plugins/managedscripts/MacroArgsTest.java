@@ -0,0 +1,54 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class MacroArgsTest {
+
+    @Test
+    public void literals() {
+        assertNull(MacroArgs.parse(null));
+        assertNull(MacroArgs.parse(""));
+        assertNull(MacroArgs.parse("--verbose"));
+        assertNull(MacroArgs.parse("a b {c}"));
+    }
+
+    @Test
+    public void variables() {
+        assertArrayEquals(new String[] { "", "$FOO", "" }, MacroArgs.parse("$FOO"));
+        assertArrayEquals(new String[] { "-Dv=", "$BUILD_NUMBER", ".jar" }, MacroArgs.parse("-Dv=$BUILD_NUMBER.jar"));
+        assertArrayEquals(new String[] { "", "$A", "", "$B_2", "" }, MacroArgs.parse("$A$B_2"));
+    }
+
+    @Test
+    public void tokens() {
+        assertArrayEquals(new String[] { "a-", "${BUILD_NUMBER}", "-b" }, MacroArgs.parse("a-${BUILD_NUMBER}-b"));
+        // a quoted '}' does not end the token
+        assertArrayEquals(new String[] { "", "${FILE,path=\"x}y\"}", "/", "$VAR", "" }, MacroArgs.parse("${FILE,path=\"x}y\"}/$VAR"));
+        assertArrayEquals(new String[] { "", "${ENV,var=\"a\\\"}\"}", "" }, MacroArgs.parse("${ENV,var=\"a\\\"}\"}"));
+    }
+
+    @Test
+    public void unusualTemplatesAreExpandedAsAWhole() {
+        assertArrayEquals(new String[] { "", "cost $5", "" }, MacroArgs.parse("cost $5"));
+        assertArrayEquals(new String[] { "", "$$HOME", "" }, MacroArgs.parse("$$HOME"));
+        assertArrayEquals(new String[] { "", "${UNCLOSED", "" }, MacroArgs.parse("${UNCLOSED"));
+        assertArrayEquals(new String[] { "", "trailing $", "" }, MacroArgs.parse("trailing $"));
+    }
+
+    @Test
+    public void classification() {
+        assertSame(MacroArgs.NONE, MacroArgs.of(null));
+        assertSame(MacroArgs.NONE, MacroArgs.of(new String[0]));
+        assertTrue(MacroArgs.of(new String[] { "a", "b" }).isLiteral());
+        final MacroArgs args = MacroArgs.of(new String[] { "a", "$B" });
+        assertFalse(args.isLiteral());
+        assertEquals(2, args.size());
+    }
+}